@@ -0,0 +1,164 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters for the stages of the ingest pipeline, with histograms of their durations. Points and bytes received are
+ * counted per owner and distance. Owners are tagged as they are first seen, up to a maximum number of owners, after
+ * which the rest are tagged as <code>other</code>, so that the number of time series exposed stays bounded.
+ */
+@Component
+public class IngestMetrics {
+
+    private static final String otherOwner = "other";
+
+    private final MeterRegistry registry;
+    private final int maxOwners;
+    private final Set<String> owners = ConcurrentHashMap.newKeySet();
+    private final Map<String, Received> received = new ConcurrentHashMap<>();
+    private final Timer parse;
+    private final Timer encode;
+    private final Timer bulk;
+    private final Timer respond;
+    private final Timer lastSingle;
+    private final Timer lastMultiple;
+    private final Counter[] bulkItems = new Counter[IngestResponse.Status.values().length];
+
+    public IngestMetrics(MeterRegistry registry, @Value("${no.difi.statistics.ingest.metrics.max-owners:100}") int maxOwners) {
+        this.registry = registry;
+        this.maxOwners = maxOwners;
+        this.parse = timer("statistics.ingest.parse", "Reading and parsing of the points of a request body, including waiting for the body to arrive")
+                .register(registry);
+        this.encode = timer("statistics.ingest.encode", "Encoding of the points of an ingest into documents")
+                .register(registry);
+        this.bulk = timer("statistics.ingest.bulk", "Round trips of bulk requests to Elasticsearch")
+                .register(registry);
+        this.respond = timer("statistics.ingest.respond", "Building and writing of ingest responses, or of each status line of NDJSON responses")
+                .register(registry);
+        this.lastSingle = timer("statistics.ingest.last", "Lookups of the last point of series")
+                .tag("series", "single")
+                .register(registry);
+        this.lastMultiple = timer("statistics.ingest.last", "Lookups of the last point of series")
+                .tag("series", "multiple")
+                .register(registry);
+        for (IngestResponse.Status status : IngestResponse.Status.values())
+            bulkItems[status.ordinal()] = Counter.builder("statistics.ingest.bulk.items")
+                    .description("Items of bulk responses from Elasticsearch")
+                    .tag("status", status.name())
+                    .register(registry);
+    }
+
+    private static Timer.Builder timer(String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofMinutes(1));
+    }
+
+    public void parsed(long nanos) {
+        parse.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void encoded(long nanos) {
+        encode.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void bulk(long nanos) {
+        bulk.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param counts number of bulk items per status, indexed by the ordinal of the status
+     */
+    public void bulkItems(int[] counts) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                bulkItems[i].increment(counts[i]);
+        }
+    }
+
+    public void responded(long nanos) {
+        respond.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param series number of series looked up
+     */
+    public void last(int series, long nanos) {
+        (series == 1 ? lastSingle : lastMultiple).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts points and bytes received for the series.
+     */
+    public void received(TimeSeriesDefinition seriesDefinition, long points, long bytes) {
+        Received counters = received.computeIfAbsent(owner(seriesDefinition.getOwner()) + '@' + seriesDefinition.getDistance(), this::counters);
+        if (points > 0)
+            counters.points.increment(points);
+        if (bytes > 0)
+            counters.bytes.increment(bytes);
+    }
+
+    /**
+     * Owners already tagged are looked up without locking. New owners are added under a lock, so that concurrent
+     * requests of new owners cannot tag more than the maximum number of owners.
+     *
+     * @return the owner as tag, or {@value #otherOwner} if the maximum number of owners are tagged already
+     */
+    private String owner(String owner) {
+        if (owners.contains(owner))
+            return owner;
+        synchronized (owners) {
+            if (owners.contains(owner))
+                return owner;
+            if (owners.size() >= maxOwners)
+                return otherOwner;
+            owners.add(owner);
+            return owner;
+        }
+    }
+
+    private Received counters(String key) {
+        String owner = key.substring(0, key.indexOf('@'));
+        String distance = key.substring(key.indexOf('@') + 1);
+        return new Received(
+                Counter.builder("statistics.ingest.points")
+                        .description("Points received")
+                        .tag("owner", owner)
+                        .tag("distance", distance)
+                        .register(registry),
+                Counter.builder("statistics.ingest.bytes")
+                        .description("Bytes of points received, after decompression")
+                        .baseUnit("bytes")
+                        .tag("owner", owner)
+                        .tag("distance", distance)
+                        .register(registry)
+        );
+    }
+
+    private static class Received {
+
+        private final Counter points;
+        private final Counter bytes;
+
+        Received(Counter points, Counter bytes) {
+            this.points = points;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
@@ -1,18 +1,96 @@
 package no.difi.statistics;
 
 import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.api.IngestStatusCollector;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import static java.lang.String.format;
 
 public interface IngestService {
 
-    IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints);
+    default IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints) {
+        return ingest(seriesDefinition, dataPoints.iterator());
+    }
+
+    /**
+     * Ingest the points in the order they are produced by the iterator, which may be backed by a request body that is
+     * still being read.
+     */
+    default IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints) {
+        return join(ingestAsync(seriesDefinition, dataPoints));
+    }
+
+    /**
+     * Like {@link #ingest(TimeSeriesDefinition, Iterator)}, but returns as soon as all points have been read from the
+     * iterator, without waiting for them to be stored.
+     */
+    default CompletableFuture<IngestResponse> ingestAsync(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints) {
+        return ingestAsync(seriesDefinition, dataPoints, IngestResponse.builder());
+    }
 
-    TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition);
+    /**
+     * Like {@link #ingestAsync(TimeSeriesDefinition, Iterator)}, with the response built by the given collector from
+     * the status of each point.
+     */
+    <R> CompletableFuture<R> ingestAsync(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, IngestStatusCollector<R> collector);
+
+    default TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition) {
+        return join(lastAsync(seriesDefinition));
+    }
+
+    CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition);
+
+    /**
+     * The last point of each of the series, in the order given, holding null for empty series.
+     */
+    default CompletableFuture<Map<TimeSeriesDefinition, TimeSeriesPoint>> lastAsync(List<TimeSeriesDefinition> seriesDefinitions) {
+        Map<TimeSeriesDefinition, CompletableFuture<TimeSeriesPoint>> lastPoints = new LinkedHashMap<>();
+        seriesDefinitions.forEach(seriesDefinition -> lastPoints.computeIfAbsent(seriesDefinition, this::lastAsync));
+        return CompletableFuture.allOf(lastPoints.values().toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            Map<TimeSeriesDefinition, TimeSeriesPoint> result = new LinkedHashMap<>();
+            lastPoints.forEach((seriesDefinition, lastPoint) -> result.put(seriesDefinition, lastPoint.join()));
+            return result;
+        });
+    }
+
+    /**
+     * Prepares the series for ingesting a large amount of historic points as fast as possible, until the returned
+     * backfill is closed. Points ingested meanwhile may not be searchable before then.
+     *
+     * @throws IllegalStateException if the series is already being backfilled
+     * @throws UnsupportedOperationException if points cannot be backfilled with the current configuration
+     */
+    default Backfill backfill(TimeSeriesDefinition seriesDefinition) {
+        return () -> {};
+    }
+
+    interface Backfill extends AutoCloseable {
+
+        /**
+         * Returns the series to normal operation, making all points ingested searchable.
+         */
+        @Override
+        void close();
+
+    }
+
+    private static <T> T join(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
 
     class TimeSeriesPointAlreadyExists extends RuntimeException {
 
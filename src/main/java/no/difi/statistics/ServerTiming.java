@@ -0,0 +1,103 @@
+package no.difi.statistics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records where the time of a request goes, for the <code>Server-Timing</code> header of its response. A recorder is
+ * bound to the thread handling the request while it runs, so that stages deeper in the pipeline can record their time
+ * without being passed the request, and recording is a no-op for requests without one.
+ */
+public class ServerTiming {
+
+    public enum Phase {
+        /** Reading and parsing the request body */
+        parse,
+        /** Authentication and authorization, until the request is handled */
+        auth,
+        /** Encoding points into documents */
+        encode,
+        /** Waiting for Elasticsearch */
+        es,
+        /** Building and writing the response */
+        respond
+    }
+
+    private static final ThreadLocal<ServerTiming> current = new ThreadLocal<>();
+
+    private final long started = System.nanoTime();
+    private final AtomicLongArray durations = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray recorded = new AtomicLongArray(Phase.values().length);
+    private volatile long ready;
+
+    /**
+     * @return the recorder bound to this thread, or null if the request is not timed
+     */
+    public static ServerTiming current() {
+        return current.get();
+    }
+
+    public static void bind(ServerTiming serverTiming) {
+        current.set(serverTiming);
+    }
+
+    public static void unbind() {
+        current.remove();
+    }
+
+    /**
+     * Adds to the phase of the request handled by this thread, if it is timed.
+     */
+    public static void record(Phase phase, long nanos) {
+        ServerTiming serverTiming = current.get();
+        if (serverTiming != null)
+            serverTiming.add(phase, nanos);
+    }
+
+    public void add(Phase phase, long nanos) {
+        durations.addAndGet(phase.ordinal(), nanos);
+        recorded.set(phase.ordinal(), 1);
+    }
+
+    /**
+     * Records the time since the request arrived as authentication, as the request is about to be handled.
+     */
+    public void handling() {
+        add(Phase.auth, System.nanoTime() - started);
+    }
+
+    /**
+     * Records the time since the given start, apart from the time parsing and encoding meanwhile, as waiting for
+     * Elasticsearch, as the result of the request is ready.
+     */
+    public void completed(long startedNanos) {
+        long now = System.nanoTime();
+        add(Phase.es, Math.max(0, now - startedNanos - durations.get(Phase.parse.ordinal()) - durations.get(Phase.encode.ordinal())));
+        ready = now;
+    }
+
+    /**
+     * Records the time since the result was ready as responding, as the response is about to be written.
+     */
+    public void responding() {
+        if (ready != 0)
+            add(Phase.respond, System.nanoTime() - ready);
+    }
+
+    /**
+     * @return the value of the <code>Server-Timing</code> header, with durations in milliseconds
+     */
+    public String header() {
+        StringBuilder header = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (recorded.get(phase.ordinal()) == 0)
+                continue;
+            if (header.length() > 0)
+                header.append(", ");
+            header.append(phase.name()).append(";dur=")
+                    .append(String.format(Locale.ROOT, "%.1f", durations.get(phase.ordinal()) / 1_000_000.0));
+        }
+        return header.toString();
+    }
+
+}
@@ -0,0 +1,81 @@
+package no.difi.statistics.api;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.time.Instant;
+
+/**
+ * A batch of points accepted for ingest in the background. The response summarizes the statuses of the points, like
+ * a synchronous ingest with <code>summary=true</code>, once the job is done. A summary rather than the status of every
+ * point is kept, as jobs are held in memory until they expire.
+ */
+public class IngestJob {
+
+    public enum State {Pending, Running, Done, Failed}
+
+    private final String id;
+    private final TimeSeriesDefinition seriesDefinition;
+    private final Instant created;
+    private volatile State state = State.Pending;
+    private volatile IngestSummary response;
+    private volatile String error;
+    private volatile Instant completed;
+
+    IngestJob(String id, TimeSeriesDefinition seriesDefinition) {
+        this.id = id;
+        this.seriesDefinition = seriesDefinition;
+        this.created = Instant.now();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public IngestSummary getResponse() {
+        return response;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public Instant getCreated() {
+        return created;
+    }
+
+    public Instant getCompleted() {
+        return completed;
+    }
+
+    @JsonIgnore
+    TimeSeriesDefinition getSeriesDefinition() {
+        return seriesDefinition;
+    }
+
+    @JsonIgnore
+    boolean isCompleted() {
+        return completed != null;
+    }
+
+    void running() {
+        state = State.Running;
+    }
+
+    void done(IngestSummary response) {
+        this.response = response;
+        this.state = State.Done;
+        this.completed = Instant.now();
+    }
+
+    void failed(String error) {
+        this.error = error;
+        this.state = State.Failed;
+        this.completed = Instant.now();
+    }
+
+}
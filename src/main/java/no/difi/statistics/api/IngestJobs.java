@@ -0,0 +1,146 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.IngestService;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs ingest jobs in the background and holds on to them until they expire. The number of jobs held is bounded:
+ * completed jobs are kept for the configured time to live, or until room is needed for a new job, and new jobs are
+ * rejected with <code>503 Service Unavailable</code> when the store is full of jobs not yet completed. Jobs not yet
+ * completed hold their points in memory, so they are also bounded by the total number of points pending and by the
+ * number of jobs waiting for a thread. Completed jobs only hold an {@link IngestSummary} of the outcome.
+ */
+@Component
+public class IngestJobs {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestJobs.class);
+
+    private final IngestService ingestService;
+    private final int maxSize;
+    private final long maxPendingPoints;
+    private final Duration timeToLive;
+    private final ExecutorService executor;
+    private final Map<String, IngestJob> jobs = new LinkedHashMap<>();
+    private long pendingPoints; // Guarded by jobs
+
+    public IngestJobs(
+            IngestService ingestService,
+            @Value("${no.difi.statistics.ingest.jobs.max-size:1000}") int maxSize,
+            @Value("${no.difi.statistics.ingest.jobs.time-to-live:1h}") Duration timeToLive,
+            @Value("${no.difi.statistics.ingest.jobs.threads:2}") int threads,
+            @Value("${no.difi.statistics.ingest.jobs.queue-capacity:100}") int queueCapacity,
+            @Value("${no.difi.statistics.ingest.jobs.max-pending-points:1000000}") long maxPendingPoints) {
+        this.ingestService = ingestService;
+        this.maxSize = maxSize;
+        this.maxPendingPoints = maxPendingPoints;
+        this.timeToLive = timeToLive;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "ingest-job-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Accepts the points for ingest in the background.
+     *
+     * @throws ResponseStatusException with <code>503 Service Unavailable</code> if there are too many jobs or points
+     * pending already, or with <code>413 Payload Too Large</code> if the job alone has more points than may be pending
+     */
+    public IngestJob submit(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints) {
+        if (dataPoints.size() > maxPendingPoints)
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Too many points for an ingest job, split them into smaller jobs");
+        IngestJob job = new IngestJob(UUID.randomUUID().toString(), seriesDefinition);
+        synchronized (jobs) {
+            evict();
+            if (jobs.size() >= maxSize)
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many ingest jobs in progress");
+            if (pendingPoints + dataPoints.size() > maxPendingPoints)
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many points pending in ingest jobs");
+            jobs.put(job.getId(), job);
+            pendingPoints += dataPoints.size();
+        }
+        try {
+            executor.execute(() -> run(job, dataPoints));
+        } catch (RejectedExecutionException e) {
+            synchronized (jobs) {
+                jobs.remove(job.getId());
+                pendingPoints -= dataPoints.size();
+            }
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many ingest jobs waiting to run");
+        }
+        return job;
+    }
+
+    /**
+     * @return the job, or null if there is no such job for the series or it has expired
+     */
+    public IngestJob get(TimeSeriesDefinition seriesDefinition, String id) {
+        IngestJob job;
+        synchronized (jobs) {
+            evict();
+            job = jobs.get(id);
+        }
+        return job != null && job.getSeriesDefinition().equals(seriesDefinition) ? job : null;
+    }
+
+    private void run(IngestJob job, List<TimeSeriesPoint> dataPoints) {
+        job.running();
+        try {
+            job.done(ingestService.ingestAsync(job.getSeriesDefinition(), dataPoints.iterator(), IngestSummary.builder()).join());
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            logger.warn("Ingest job {} failed", job.getId(), cause);
+            job.failed(cause.getMessage());
+        } finally {
+            synchronized (jobs) {
+                pendingPoints -= dataPoints.size();
+            }
+        }
+    }
+
+    /**
+     * Removes expired jobs, and the oldest completed jobs if the store is full.
+     */
+    private void evict() {
+        Instant expiry = Instant.now().minus(timeToLive);
+        int excess = jobs.size() - maxSize + 1;
+        for (Iterator<IngestJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            IngestJob job = iterator.next();
+            if (job.isCompleted() && (excess > 0 || job.getCompleted().isBefore(expiry))) {
+                iterator.remove();
+                excess--;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdown();
+    }
+
+}
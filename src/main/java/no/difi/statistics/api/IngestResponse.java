@@ -23,7 +23,7 @@ public class IngestResponse {
         return new Builder();
     }
 
-    public static class Builder {
+    public static class Builder implements IngestStatusCollector<IngestResponse> {
         private IngestResponse instance;
 
         Builder() {
@@ -33,11 +33,13 @@ public class IngestResponse {
         /**
          * Append status to the (ordered) list.
          */
+        @Override
         public Builder status(Status status) {
             instance.statuses.add(status);
             return this;
         }
 
+        @Override
         public IngestResponse build() {
             try {
                 return instance;
@@ -1,37 +1,75 @@
 package no.difi.statistics.api;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Hidden;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import no.difi.statistics.IngestMetrics;
 import no.difi.statistics.IngestService;
+import no.difi.statistics.ServerTiming;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.validation.ValidOrgno;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.servlet.view.RedirectView;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Validated
 @Tag(name = "Statistikk-inndata-api", description = "Legg data inn i statistikk-databasen")
 @RestController
 public class IngestRestController {
     private IngestService ingestService;
+    private IngestJobs ingestJobs;
+    private RateLimiter rateLimiter;
+    private NdjsonIngester ndjsonIngester;
+    private ObjectMapper objectMapper;
+    private IngestMetrics ingestMetrics;
+    private int lastMaxSeries;
+    private boolean backfillEnabled;
 
-    public IngestRestController(IngestService ingestService) {
+    public IngestRestController(
+            IngestService ingestService,
+            IngestJobs ingestJobs,
+            RateLimiter rateLimiter,
+            NdjsonIngester ndjsonIngester,
+            ObjectMapper objectMapper,
+            IngestMetrics ingestMetrics,
+            @Value("${no.difi.statistics.ingest.last.max-series:100}") int lastMaxSeries,
+            @Value("${no.difi.statistics.ingest.backfill.enabled:false}") boolean backfillEnabled) {
         this.ingestService = ingestService;
+        this.ingestJobs = ingestJobs;
+        this.rateLimiter = rateLimiter;
+        this.ndjsonIngester = ndjsonIngester;
+        this.objectMapper = objectMapper;
+        this.ingestMetrics = ingestMetrics;
+        this.lastMaxSeries = lastMaxSeries;
+        this.backfillEnabled = backfillEnabled;
     }
 
     @Hidden
@@ -46,13 +84,31 @@ public class IngestRestController {
         // Do nothing
     }
 
-    @Operation(summary = "Legg inn data for ein tidsserie for din organisasjon. Organisasjonen må ha fått tilgong til dette i forkant i Maskinporten.", security = {@SecurityRequirement(name = "bearer-key")})
+    @ExceptionHandler(RateLimiter.RateLimitExceeded.class)
+    public ResponseEntity<String> rateLimitExceeded(RateLimiter.RateLimitExceeded e) {
+        return ResponseEntity
+                .status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()))
+                .body(e.getMessage());
+    }
+
+    @Operation(
+            summary = "Legg inn data for ein tidsserie for din organisasjon. Organisasjonen må ha fått tilgong til dette i forkant i Maskinporten.",
+            description = "Med async=true eller headeren \"Prefer: respond-async\" blir data lagt inn i bakgrunnen. Svaret er då 202 med ein jobb, og status for jobben kan hentast frå adressa i Location-headeren. Ein ferdig jobb har eit samandrag som svar, som med summary=true. " +
+                    "Er det for mange jobbar eller datapunkt som ventar, blir jobben avvist med 503. " +
+                    "Med summary=true er svaret eit samandrag med tal på datapunkt per status og kva for datapunkt som ikkje vart lagra, i staden for status per datapunkt.",
+            security = {@SecurityRequirement(name = "bearer-key")},
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    required = true,
+                    content = @Content(array = @ArraySchema(schema = @Schema(implementation = TimeSeriesPoint.class)))
+            )
+    )
     @PostMapping(
             value = "{owner}/{seriesName}/{distance}",
             consumes = MediaType.APPLICATION_JSON_UTF8_VALUE
     )
     @PreAuthorize("hasAuthority('SCOPE_digdir:statistikk.skriv')")
-    public IngestResponse ingest(
+    public CompletableFuture<ResponseEntity<?>> ingest(
             @Parameter(hidden = true) @AuthenticationPrincipal Jwt principal,
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner, @ValidOrgno
@@ -60,18 +116,202 @@ public class IngestRestController {
             @PathVariable String seriesName,
             @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
             @PathVariable MeasurementDistance distance,
-            @RequestBody List<TimeSeriesPoint> dataPoints
+            @Parameter(name = "async", description = "legg inn data i bakgrunnen")
+            @RequestParam(name = "async", defaultValue = "false") boolean async,
+            @Parameter(name = "summary", description = "svar med eit samandrag i staden for status per datapunkt")
+            @RequestParam(name = "summary", defaultValue = "false") boolean summary,
+            @Parameter(hidden = true) @RequestHeader(name = "Prefer", required = false) String prefer,
+            @Parameter(hidden = true) HttpServletRequest request,
+            @Parameter(hidden = true) InputStream body
+    ) throws IOException {
+        checkOwner(principal, owner);
+        long contentLength = request.getContentLengthLong();
+        rateLimiter.admit(owner, contentLength);
+        CountingInputStream countingBody = new CountingInputStream(body);
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        if (async || (prefer != null && prefer.contains("respond-async"))) {
+            // The body must be read before responding, so the points are held in memory until the job has run
+            List<TimeSeriesPoint> dataPoints = new ArrayList<>();
+            try (TimeSeriesPointReader reader = new TimeSeriesPointReader(objectMapper, countingBody)) {
+                try {
+                    reader.forEachRemaining(dataPoints::add);
+                } finally {
+                    rateLimiter.charge(owner, dataPoints.size(), contentLength < 0 ? countingBody.count() : 0);
+                    received(seriesDefinition, reader, countingBody);
+                }
+            }
+            IngestJob job = ingestJobs.submit(seriesDefinition, dataPoints);
+            return CompletableFuture.completedFuture(ResponseEntity
+                    .accepted()
+                    .location(ServletUriComponentsBuilder.fromCurrentRequestUri().path("/jobs/{id}").buildAndExpand(job.getId()).toUri())
+                    .body(job));
+        }
+        // The body is parsed while points are ingested, rather than bound to a list up front. The request thread is
+        // released when the body has been read, and the response is written when the points have been stored.
+        long started = System.nanoTime();
+        CompletableFuture<ResponseEntity<?>> result;
+        try (TimeSeriesPointReader dataPoints = new TimeSeriesPointReader(objectMapper, countingBody)) {
+            try {
+                if (summary)
+                    result = ingestService.ingestAsync(seriesDefinition, dataPoints, IngestSummary.builder()).thenApply(ResponseEntity::ok);
+                else
+                    result = ingestService.ingestAsync(seriesDefinition, dataPoints).thenApply(ResponseEntity::ok);
+            } finally {
+                rateLimiter.charge(owner, dataPoints.count(), contentLength < 0 ? countingBody.count() : 0);
+                received(seriesDefinition, dataPoints, countingBody);
+            }
+        }
+        return timed(result, started);
+    }
+
+    private void received(TimeSeriesDefinition seriesDefinition, TimeSeriesPointReader reader, CountingInputStream body) {
+        ingestMetrics.parsed(reader.nanos());
+        ingestMetrics.received(seriesDefinition, reader.count(), body.count());
+        ServerTiming.record(ServerTiming.Phase.parse, reader.nanos());
+    }
+
+    /**
+     * Records the time until the result is ready for the <code>Server-Timing</code> header, if the request is timed.
+     */
+    private static <T> CompletableFuture<T> timed(CompletableFuture<T> result, long started) {
+        ServerTiming serverTiming = ServerTiming.current();
+        return serverTiming == null ? result : result.whenComplete((r, e) -> serverTiming.completed(started));
+    }
+
+    /**
+     * Streamed responses are committed before the timings are known, so the <code>Server-Timing</code> header is sent
+     * as a trailer, if the request is timed.
+     */
+    private static void serverTimingTrailer(HttpServletRequest request, HttpServletResponse response) {
+        if (request.getAttribute(ServerTimingFilter.attribute) instanceof ServerTiming serverTiming) {
+            try {
+                response.setTrailerFields(() -> Map.of(ServerTimingFilter.header, serverTiming.header()));
+                response.setHeader("Trailer", ServerTimingFilter.header);
+            } catch (IllegalStateException e) {
+                // Trailers are not supported for this request, as with HTTP/1.0
+            }
+        }
+    }
+
+    @Operation(
+            summary = "Legg inn linjeskilde datapunkt (NDJSON) for ein tidsserie for din organisasjon, med status for kvar bolk av datapunkt etter kvart som dei er lagra.",
+            description = "Kvar bolk blir halden opp mot kvoten for organisasjonen. Blir kvoten brukt opp undervegs, endar innlegginga med ei statuslinje " +
+                    "med feil for bolken, og datapunkta frå og med offset i statuslinja kan sendast på nytt seinare.",
+            security = {@SecurityRequirement(name = "bearer-key")},
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    required = true,
+                    content = @Content(mediaType = NdjsonIngester.mediaType, schema = @Schema(implementation = TimeSeriesPoint.class))
+            )
+    )
+    @PostMapping(
+            value = "{owner}/{seriesName}/{distance}",
+            consumes = NdjsonIngester.mediaType,
+            produces = NdjsonIngester.mediaType
+    )
+    @PreAuthorize("hasAuthority('SCOPE_digdir:statistikk.skriv')")
+    public void ingestNdjson(
+            @Parameter(hidden = true) @AuthenticationPrincipal Jwt principal,
+            @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
+            @PathVariable @ValidOrgno String owner,
+            @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
+            @PathVariable String seriesName,
+            @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
+            @PathVariable MeasurementDistance distance,
+            @Parameter(hidden = true) HttpServletRequest request,
+            @Parameter(hidden = true) HttpServletResponse response
+    ) throws IOException {
+        checkOwner(principal, owner);
+        long contentLength = request.getContentLengthLong();
+        rateLimiter.admit(owner, contentLength);
+        response.setContentType(NdjsonIngester.mediaType);
+        serverTimingTrailer(request, response);
+        ndjsonIngester.ingest(
+                TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner),
+                request.getInputStream(),
+                contentLength < 0,
+                response.getOutputStream()
+        );
+    }
+
+    @Operation(
+            summary = "Legg inn historiske data for ein tidsserie for din organisasjon så raskt som mogleg.",
+            description = "Datapunkta blir sende som linjeskilde datapunkt (NDJSON). Medan dei blir lagt inn, blir ikkje nye data gjort søkbare fortløpande, " +
+                    "og svaret er eit samandrag for kvar bolk av datapunkt etter kvart som dei er lagra. Når alle er lagra, blir dei gjort søkbare. " +
+                    "Berre éin slik innlegging kan gå om gongen for ein tidsserie, og innlegginga er ikkje avgrensa av kvoten for organisasjonen. " +
+                    "Krev scope digdir:statistikk.admin.",
+            security = {@SecurityRequirement(name = "bearer-key")},
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    required = true,
+                    content = @Content(mediaType = NdjsonIngester.mediaType, schema = @Schema(implementation = TimeSeriesPoint.class))
+            )
+    )
+    @PostMapping(
+            value = "{owner}/{seriesName}/{distance}/backfill",
+            consumes = NdjsonIngester.mediaType,
+            produces = NdjsonIngester.mediaType
+    )
+    @PreAuthorize("hasAuthority('SCOPE_digdir:statistikk.admin')")
+    public void backfill(
+            @Parameter(hidden = true) @AuthenticationPrincipal Jwt principal,
+            @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
+            @PathVariable @ValidOrgno String owner,
+            @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
+            @PathVariable String seriesName,
+            @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
+            @PathVariable MeasurementDistance distance,
+            @Parameter(hidden = true) HttpServletRequest request,
+            @Parameter(hidden = true) HttpServletResponse response
+    ) throws IOException {
+        if (!backfillEnabled)
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Backfill is not enabled");
+        checkOwner(principal, owner);
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        IngestService.Backfill backfill;
+        try {
+            backfill = ingestService.backfill(seriesDefinition);
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        }
+        try (backfill) {
+            response.setContentType(NdjsonIngester.mediaType);
+            serverTimingTrailer(request, response);
+            ndjsonIngester.backfill(seriesDefinition, request.getInputStream(), response.getOutputStream());
+        }
+    }
+
+    @Operation(
+            summary = "Hent status for ein jobb som legg inn data i bakgrunnen",
+            security = {@SecurityRequirement(name = "bearer-key")}
+    )
+    @GetMapping("{owner}/{seriesName}/{distance}/jobs/{id}")
+    @PreAuthorize("hasAuthority('SCOPE_digdir:statistikk.skriv')")
+    public IngestJob job(
+            @Parameter(hidden = true) @AuthenticationPrincipal Jwt principal,
+            @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
+            @PathVariable @ValidOrgno String owner,
+            @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
+            @PathVariable String seriesName,
+            @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
+            @PathVariable MeasurementDistance distance,
+            @Parameter(name = "id", required = true, description = "id for jobben")
+            @PathVariable String id
     ) {
+        checkOwner(principal, owner);
+        IngestJob job = ingestJobs.get(TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner), id);
+        if (job == null)
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No job " + id + " for this series. Jobs expire some time after completion.");
+        return job;
+    }
+
+    private void checkOwner(Jwt principal, String owner) {
         String authorizedOrgno = getOrgNoFromAuthorizedToken(principal);
 
         if (!owner.equals(authorizedOrgno)) {
             throw new ResponseStatusException(
                     HttpStatus.FORBIDDEN, "No access to orgno " + authorizedOrgno + " for timeseries owned by " + owner + ". Owner must be equal to authorized organization in Maskinporten.");
         }
-        return ingestService.ingest(
-                TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner),
-                dataPoints
-        );
     }
 
     private String getOrgNoFromAuthorizedToken(Jwt principal) {
@@ -91,19 +331,46 @@ public class IngestRestController {
 
     @Operation(summary = "Hent nyaste datapunkt frå ein tidsserie")
     @GetMapping("{owner}/{seriesName}/{distance}/last")
-    public TimeSeriesPoint last(
+    public CompletableFuture<ResponseEntity<TimeSeriesPoint>> last(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable @ValidOrgno String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
             @PathVariable String seriesName,
             @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
-            @PathVariable MeasurementDistance distance,
-            HttpServletResponse response
+            @PathVariable MeasurementDistance distance
     ) {
-        TimeSeriesPoint lastPoint = ingestService.last(TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner));
-        if (lastPoint == null)
-            response.setStatus(HttpStatus.NO_CONTENT.value());
-        return lastPoint;
+        long started = System.nanoTime();
+        return timed(ingestService.lastAsync(TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner)), started)
+                .thenApply(lastPoint -> lastPoint == null ? ResponseEntity.noContent().<TimeSeriesPoint>build() : ResponseEntity.ok(lastPoint));
+    }
+
+    @Operation(
+            summary = "Hent nyaste datapunkt frå fleire tidsseriar",
+            description = "Svaret inneheld nyaste datapunkt for kvar tidsserie som har data, med \"eigar@namn@måleavstand\" som nøkkel. Tidsseriar utan data er ikkje med i svaret. Talet på tidsseriar per førespurnad er avgrensa, til 100 som standard."
+    )
+    @PostMapping(value = "last", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<Map<String, TimeSeriesPoint>> last(
+            @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    required = true,
+                    content = @Content(array = @ArraySchema(schema = @Schema(implementation = TimeSeriesDefinition.class)))
+            )
+            @RequestBody List<TimeSeriesDefinition> seriesDefinitions
+    ) {
+        if (seriesDefinitions.size() > lastMaxSeries)
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "No more than " + lastMaxSeries + " series per request");
+        for (TimeSeriesDefinition seriesDefinition : seriesDefinitions) {
+            if (seriesDefinition == null || seriesDefinition.getOwner() == null || seriesDefinition.getName() == null || seriesDefinition.getDistance() == null)
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Series must have owner, name and distance");
+        }
+        long started = System.nanoTime();
+        return timed(ingestService.lastAsync(seriesDefinitions), started).thenApply(lastPoints -> {
+            Map<String, TimeSeriesPoint> result = new LinkedHashMap<>();
+            lastPoints.forEach((seriesDefinition, lastPoint) -> {
+                if (lastPoint != null)
+                    result.put(seriesDefinition.toString(), lastPoint);
+            });
+            return result;
+        });
     }
 
 }
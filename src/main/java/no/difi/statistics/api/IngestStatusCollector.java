@@ -0,0 +1,13 @@
+package no.difi.statistics.api;
+
+/**
+ * Receives the status of each ingested point, in the order of the points, and builds the response from them. Lets the
+ * ingest service fold statuses into the response as bulk requests complete, without holding all of them.
+ */
+public interface IngestStatusCollector<R> {
+
+    IngestStatusCollector<R> status(IngestResponse.Status status);
+
+    R build();
+
+}
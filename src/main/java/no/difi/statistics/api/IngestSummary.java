@@ -0,0 +1,121 @@
+package no.difi.statistics.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Compact alternative to {@link IngestResponse} for large batches: counts per status, and the points that were not
+ * stored as run-length encoded ranges of positions, so a batch that went well is summarized in constant size.
+ */
+public class IngestSummary {
+
+    private long total;
+    private long ok;
+    private long failed;
+    private long conflict;
+    private List<Range> notOk = new ArrayList<>();
+
+    private IngestSummary() {
+        // Use builder
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getOk() {
+        return ok;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getConflict() {
+        return conflict;
+    }
+
+    /**
+     * @return ranges of consecutive points with the same status other than {@link IngestResponse.Status#Ok}
+     */
+    public List<Range> getNotOk() {
+        return unmodifiableList(notOk);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Range {
+
+        private final long from;
+        private long count;
+        private final IngestResponse.Status status;
+
+        Range(long from, IngestResponse.Status status) {
+            this.from = from;
+            this.count = 1;
+            this.status = status;
+        }
+
+        /**
+         * @return position of the first point of the range
+         */
+        public long getFrom() {
+            return from;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public IngestResponse.Status getStatus() {
+            return status;
+        }
+
+    }
+
+    public static class Builder implements IngestStatusCollector<IngestSummary> {
+        private IngestSummary instance;
+        private Range last;
+
+        Builder() {
+            this.instance = new IngestSummary();
+        }
+
+        /**
+         * Append status of the next point.
+         */
+        @Override
+        public Builder status(IngestResponse.Status status) {
+            switch (status) {
+                case Ok: instance.ok++; break;
+                case Failed: instance.failed++; break;
+                case Conflict: instance.conflict++; break;
+            }
+            if (status != IngestResponse.Status.Ok) {
+                if (last != null && last.status == status && last.from + last.count == instance.total) {
+                    last.count++;
+                } else {
+                    last = new Range(instance.total, status);
+                    instance.notOk.add(last);
+                }
+            }
+            instance.total++;
+            return this;
+        }
+
+        @Override
+        public IngestSummary build() {
+            try {
+                return instance;
+            } finally {
+                instance = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,274 @@
+package no.difi.statistics.api;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.IngestService;
+import no.difi.statistics.ServerTiming;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Ingests newline-delimited points (<code>application/x-ndjson</code>) as they arrive. Points are collected in chunks,
+ * and a chunk is ingested when it is full or when the client has sent nothing more for now, so that a slow, long-lived
+ * upload is ingested incrementally. The next chunk is read while the previous one is being stored, and one status
+ * line is written and flushed per chunk:
+ * <pre>
+ * {"chunk":0,"offset":0,"statuses":["Ok","Ok"]}
+ * </pre>
+ * where offset is the position of the first point of the chunk in the upload. An invalid line ends the upload, after
+ * the points before it have been ingested, with an error line:
+ * <pre>
+ * {"line":3,"error":"Point is missing timestamp"}
+ * </pre>
+ * A body cut off while being read, as when it decompresses to more than allowed, ends the upload the same way, with an
+ * error line for the line being read. A chunk that fails ends the upload with a status line holding an error instead
+ * of statuses.
+ * <p>
+ * Each chunk is admitted by the rate limiter before it is ingested, so that a long-lived upload cannot go on after the
+ * owner has used up its quota. A chunk not admitted ends the upload, without reading the rest of the body, with a status
+ * line holding the error, and the client may send the points again from its offset after waiting:
+ * <pre>
+ * {"chunk":2,"offset":2000,"error":"Rate limit exceeded for 991825827. Retry after 5 seconds."}
+ * </pre>
+ * <p>
+ * Backfills are ingested the same way, in larger chunks and with an {@link IngestSummary} per chunk instead of
+ * statuses, so that the status lines report progress without growing with the number of points.
+ */
+@Component
+public class NdjsonIngester {
+
+    public static final String mediaType = "application/x-ndjson";
+
+    private final IngestService ingestService;
+    private final RateLimiter rateLimiter;
+    private final ObjectMapper objectMapper;
+    private final IngestMetrics ingestMetrics;
+    private final ObjectReader pointReader;
+    private final int chunkSize;
+    private final int backfillChunkSize;
+
+    public NdjsonIngester(
+            IngestService ingestService,
+            RateLimiter rateLimiter,
+            ObjectMapper objectMapper,
+            IngestMetrics ingestMetrics,
+            @Value("${no.difi.statistics.ingest.ndjson.chunk-size:1000}") int chunkSize,
+            @Value("${no.difi.statistics.ingest.backfill.chunk-size:50000}") int backfillChunkSize) {
+        this.ingestService = ingestService;
+        this.rateLimiter = rateLimiter;
+        this.objectMapper = objectMapper;
+        this.ingestMetrics = ingestMetrics;
+        this.pointReader = objectMapper.readerFor(TimeSeriesPoint.class);
+        this.chunkSize = chunkSize;
+        this.backfillChunkSize = backfillChunkSize;
+    }
+
+    /**
+     * @param body request body, already admitted by the rate limiter
+     * @param chargeBytes true if the bytes of the body were not charged on admission
+     */
+    public void ingest(TimeSeriesDefinition seriesDefinition, InputStream body, boolean chargeBytes, OutputStream output) throws IOException {
+        String owner = seriesDefinition.getOwner();
+        ingest(seriesDefinition, new CountingInputStream(body), chunkSize, false, new Quota() {
+
+            @Override
+            public void admit() {
+                rateLimiter.admit(owner, -1);
+            }
+
+            @Override
+            public void charge(int points, long bytes) {
+                rateLimiter.charge(owner, points, chargeBytes ? bytes : 0);
+            }
+
+        }, output);
+    }
+
+    /**
+     * Ingests the body of a backfill, which is not rate limited.
+     */
+    public void backfill(TimeSeriesDefinition seriesDefinition, InputStream body, OutputStream output) throws IOException {
+        ingest(seriesDefinition, new CountingInputStream(body), backfillChunkSize, true, Quota.unlimited, output);
+    }
+
+    private void ingest(
+            TimeSeriesDefinition seriesDefinition,
+            CountingInputStream body,
+            int chunkSize,
+            boolean summary,
+            Quota quota,
+            OutputStream output) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF_8));
+        List<TimeSeriesPoint> chunk = new ArrayList<>(chunkSize);
+        CompletableFuture<?> pending = null;
+        Map<String, Object> error = null;
+        int chunkNumber = 0;
+        long offset = 0;
+        long chargedBytes = 0;
+        int lineNumber = 0;
+        long parseNanos = 0;
+        boolean end = false;
+        try {
+            while (!end) {
+                long started = System.nanoTime();
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (ResponseStatusException e) {
+                    // The body was cut off while reading, as when it decompresses to more than allowed
+                    error = error(lineNumber + 1, e.getReason());
+                    line = null;
+                }
+                if (line == null) {
+                    end = true;
+                } else {
+                    lineNumber++;
+                    try {
+                        if (!line.isBlank())
+                            chunk.add(TimeSeriesPointReader.validated(pointReader.readValue(line)));
+                    } catch (JsonProcessingException e) {
+                        error = error(lineNumber, "Invalid point");
+                        end = true;
+                    } catch (ResponseStatusException e) {
+                        error = error(lineNumber, e.getReason());
+                        end = true;
+                    }
+                }
+                parseNanos += System.nanoTime() - started;
+                // Keep reading until the chunk is full, or the client has nothing more to send for now
+                if (!end && chunk.size() < chunkSize && (chunk.isEmpty() || reader.ready()))
+                    continue;
+                // Wait for the previous chunk before submitting the next, so a point repeated in a later chunk wins
+                if (pending != null) {
+                    int size = writeStatus(output, chunkNumber++, offset, pending);
+                    if (size < 0)
+                        return;
+                    offset += size;
+                    pending = null;
+                }
+                if (!chunk.isEmpty()) {
+                    try {
+                        quota.admit();
+                    } catch (RateLimiter.RateLimitExceeded e) {
+                        Map<String, Object> status = status(chunkNumber, offset);
+                        status.put("error", e.getMessage());
+                        writeLine(output, status);
+                        return;
+                    }
+                    quota.charge(chunk.size(), body.count() - chargedBytes);
+                    ingestMetrics.received(seriesDefinition, chunk.size(), body.count() - chargedBytes);
+                    chargedBytes = body.count();
+                    pending = summary
+                            ? ingestService.ingestAsync(seriesDefinition, chunk.iterator(), IngestSummary.builder())
+                            : ingestService.ingestAsync(seriesDefinition, chunk.iterator());
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (pending != null && writeStatus(output, chunkNumber, offset, pending) < 0)
+                return;
+            if (error != null)
+                writeLine(output, error);
+        } finally {
+            ingestMetrics.parsed(parseNanos);
+            ServerTiming.record(ServerTiming.Phase.parse, parseNanos);
+        }
+    }
+
+    /**
+     * @return number of points in the chunk, or -1 if the chunk failed
+     */
+    private int writeStatus(OutputStream output, int chunkNumber, long offset, CompletableFuture<?> pending) throws IOException {
+        Map<String, Object> status = status(chunkNumber, offset);
+        Object response;
+        long started = System.nanoTime();
+        try {
+            response = pending.join();
+        } catch (CompletionException e) {
+            status.put("error", String.valueOf(e.getCause().getMessage()));
+            writeLine(output, status);
+            return -1;
+        } finally {
+            ServerTiming.record(ServerTiming.Phase.es, System.nanoTime() - started);
+        }
+        int size;
+        if (response instanceof IngestSummary summary) {
+            status.put("summary", summary);
+            size = (int) summary.getTotal();
+        } else {
+            status.put("statuses", ((IngestResponse) response).getStatuses());
+            size = ((IngestResponse) response).getStatuses().size();
+        }
+        writeLine(output, status);
+        return size;
+    }
+
+    private static Map<String, Object> status(int chunkNumber, long offset) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("chunk", chunkNumber);
+        status.put("offset", offset);
+        return status;
+    }
+
+    private interface Quota {
+
+        Quota unlimited = new Quota() {
+
+            @Override
+            public void admit() {
+            }
+
+            @Override
+            public void charge(int points, long bytes) {
+            }
+
+        };
+
+        /**
+         * @throws RateLimiter.RateLimitExceeded if the next chunk is not to be ingested
+         */
+        void admit();
+
+        void charge(int points, long bytes);
+
+    }
+
+    private static Map<String, Object> error(int lineNumber, String reason) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("line", lineNumber);
+        error.put("error", reason);
+        return error;
+    }
+
+    private void writeLine(OutputStream output, Object value) throws IOException {
+        long started = System.nanoTime();
+        try {
+            output.write(objectMapper.writeValueAsBytes(value));
+            output.write('\n');
+            output.flush();
+        } finally {
+            long nanos = System.nanoTime() - started;
+            ingestMetrics.responded(nanos);
+            ServerTiming.record(ServerTiming.Phase.respond, nanos);
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package no.difi.statistics.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for ingest, with token buckets per owner for points per second and bytes per second. The bytes of
+ * a request are charged up front when its length is known. Points are charged when the request has been processed,
+ * so a large request may leave the owner in debt, and further requests are rejected until the debt has been paid off.
+ * <p>
+ * Limits are configured with <code>no.difi.statistics.ingest.rate-limit.points-per-second</code> and
+ * <code>bytes-per-second</code>, and can be overridden for an owner with
+ * <code>no.difi.statistics.ingest.rate-limit.owners.&lt;orgno&gt;.points-per-second</code> and so on. A rate of zero
+ * means no limit. Bucket capacity is the rate times <code>burst-seconds</code>.
+ * <p>
+ * The buckets of an owner are dropped when they have not been used for <code>idle-seconds</code> and have been
+ * refilled, as new buckets would be no different. Their meters are removed with them. Owners are tagged on the meters up
+ * to <code>no.difi.statistics.ingest.metrics.max-owners</code>, as in {@link no.difi.statistics.IngestMetrics}, after
+ * which rejections are counted as <code>other</code> and the tokens available are not exposed.
+ */
+@Component
+public class RateLimiter {
+
+    private static final String prefix = "no.difi.statistics.ingest.rate-limit.";
+    private static final String otherOwner = "other";
+
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+    private final long idleNanos;
+    private final int maxOwners;
+    private final Map<String, Buckets> owners = new ConcurrentHashMap<>();
+    private final Set<String> taggedOwners = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+    private final Counter otherRejections;
+
+    public RateLimiter(Environment environment, MeterRegistry meterRegistry) {
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        this.idleNanos = (long) (environment.getProperty(prefix + "idle-seconds", Double.class, 600d) * 1_000_000_000d);
+        this.maxOwners = environment.getProperty("no.difi.statistics.ingest.metrics.max-owners", Integer.class, 100);
+        this.otherRejections = rejections(otherOwner);
+    }
+
+    /**
+     * @param bytes length of the request, or a negative number if not known, in which case only debt is checked
+     * @throws RateLimitExceeded if the owner has used up its points, or the request would exceed its bytes
+     */
+    public void admit(String owner, long bytes) {
+        Buckets buckets = buckets(owner);
+        long wait = 0;
+        if (buckets.points != null)
+            wait = buckets.points.tryAcquire(0);
+        if (wait == 0 && buckets.bytes != null)
+            wait = buckets.bytes.tryAcquire(Math.max(0, bytes));
+        if (wait > 0) {
+            buckets.rejections.increment();
+            throw new RateLimitExceeded(owner, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1)));
+        }
+    }
+
+    /**
+     * Charges the owner for a processed request.
+     *
+     * @param bytes bytes not charged on admission
+     */
+    public void charge(String owner, long points, long bytes) {
+        Buckets buckets = buckets(owner);
+        if (buckets.points != null && points > 0)
+            buckets.points.charge(points);
+        if (buckets.bytes != null && bytes > 0)
+            buckets.bytes.charge(bytes);
+    }
+
+    private Buckets buckets(String owner) {
+        long now = System.nanoTime();
+        evictIdle(now);
+        Buckets buckets = owners.computeIfAbsent(owner, this::createBuckets);
+        buckets.lastUsed = now;
+        return buckets;
+    }
+
+    /**
+     * Drops the buckets not used for the idle time that have been refilled, at most once per idle time. A request that
+     * looked up the buckets of an owner just as they were dropped charges the dropped buckets, which at worst gives the
+     * owner one more burst after having been idle.
+     */
+    private void evictIdle(long now) {
+        long last = lastEviction.get();
+        if (now - last < idleNanos || !lastEviction.compareAndSet(last, now))
+            return;
+        for (String owner : owners.keySet())
+            owners.computeIfPresent(owner, (o, buckets) -> {
+                if (now - buckets.lastUsed < idleNanos || !buckets.full())
+                    return buckets;
+                buckets.meters.forEach(meterRegistry::remove);
+                taggedOwners.remove(owner);
+                return null;
+            });
+    }
+
+    private Buckets createBuckets(String owner) {
+        double burstSeconds = property(owner, "burst-seconds", 1);
+        TokenBucket points = bucket(property(owner, "points-per-second", 0), burstSeconds);
+        TokenBucket bytes = bucket(property(owner, "bytes-per-second", 0), burstSeconds);
+        if (!tag(owner))
+            return new Buckets(points, bytes, otherRejections, List.of());
+        List<Meter> meters = new ArrayList<>();
+        Tags tags = Tags.of("owner", owner);
+        if (points != null)
+            meters.add(Gauge.builder("statistics.ingest.rate.limit.available", points, TokenBucket::available)
+                    .description("Tokens available to the owner")
+                    .tags(tags.and("resource", "points"))
+                    .register(meterRegistry));
+        if (bytes != null)
+            meters.add(Gauge.builder("statistics.ingest.rate.limit.available", bytes, TokenBucket::available)
+                    .description("Tokens available to the owner")
+                    .tags(tags.and("resource", "bytes"))
+                    .register(meterRegistry));
+        Counter rejections = rejections(owner);
+        meters.add(rejections);
+        return new Buckets(points, bytes, rejections, meters);
+    }
+
+    /**
+     * New owners are added under a lock, so that concurrent requests of new owners cannot tag more than the maximum
+     * number of owners.
+     *
+     * @return true if the owner is to be tagged on its meters, false if the maximum number of owners are tagged already
+     */
+    private boolean tag(String owner) {
+        synchronized (taggedOwners) {
+            if (taggedOwners.size() >= maxOwners)
+                return false;
+            taggedOwners.add(owner);
+            return true;
+        }
+    }
+
+    private Counter rejections(String owner) {
+        return Counter.builder("statistics.ingest.rate.limit.rejections")
+                .description("Ingest requests rejected because the owner exceeded its rate limit")
+                .tags(Tags.of("owner", owner))
+                .register(meterRegistry);
+    }
+
+    private static TokenBucket bucket(double ratePerSecond, double burstSeconds) {
+        return ratePerSecond > 0 ? new TokenBucket(ratePerSecond, ratePerSecond * burstSeconds) : null;
+    }
+
+    private double property(String owner, String name, double defaultValue) {
+        return environment.getProperty(prefix + "owners." + owner + "." + name, Double.class,
+                environment.getProperty(prefix + name, Double.class, defaultValue));
+    }
+
+    private static class Buckets {
+
+        private final TokenBucket points;
+        private final TokenBucket bytes;
+        private final Counter rejections;
+        private final List<Meter> meters;
+        private volatile long lastUsed;
+
+        Buckets(TokenBucket points, TokenBucket bytes, Counter rejections, List<Meter> meters) {
+            this.points = points;
+            this.bytes = bytes;
+            this.rejections = rejections;
+            this.meters = meters;
+        }
+
+        boolean full() {
+            return (points == null || points.full()) && (bytes == null || bytes.full());
+        }
+
+    }
+
+    public static class RateLimitExceeded extends RuntimeException {
+
+        private final long retryAfterSeconds;
+
+        RateLimitExceeded(String owner, long retryAfterSeconds) {
+            super("Rate limit exceeded for " + owner + ". Retry after " + retryAfterSeconds + " seconds.");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+    }
+
+}
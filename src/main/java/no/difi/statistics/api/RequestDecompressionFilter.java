@@ -0,0 +1,176 @@
+package no.difi.statistics.api;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decompresses request bodies sent with <code>Content-Encoding: gzip</code> or <code>deflate</code> while they are
+ * read, so the rest of the application sees the plain body. The decompressed size is limited, to guard against bodies
+ * that expand to far more than a reasonable upload (zip bombs): reading beyond the limit fails with
+ * <code>413 Payload Too Large</code>. Other encodings are rejected with <code>415 Unsupported Media Type</code>.
+ */
+@Component
+public class RequestDecompressionFilter extends OncePerRequestFilter {
+
+    private final long maxDecompressedSize;
+
+    public RequestDecompressionFilter(@Value("${no.difi.statistics.ingest.max-decompressed-size:104857600}") long maxDecompressedSize) {
+        this.maxDecompressedSize = maxDecompressedSize;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String encoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (encoding == null || encoding.isBlank() || encoding.trim().equalsIgnoreCase("identity")) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        InputStream decompressed;
+        switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip":
+            case "x-gzip":
+                try {
+                    decompressed = new GZIPInputStream(request.getInputStream());
+                } catch (IOException e) {
+                    response.sendError(HttpStatus.BAD_REQUEST.value(), "Invalid gzip body");
+                    return;
+                }
+                break;
+            case "deflate":
+                decompressed = new InflaterInputStream(request.getInputStream());
+                break;
+            default:
+                response.sendError(HttpStatus.UNSUPPORTED_MEDIA_TYPE.value(), "Unsupported content encoding " + encoding + ". Use gzip or deflate.");
+                return;
+        }
+        filterChain.doFilter(new DecompressedRequest(request, decompressed), response);
+    }
+
+    private class DecompressedRequest extends HttpServletRequestWrapper {
+
+        private final ServletInputStream inputStream;
+
+        DecompressedRequest(HttpServletRequest request, InputStream decompressed) {
+            super(request);
+            this.inputStream = new LimitedInputStream(decompressed, request.getInputStream());
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return isRemoved(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            return isRemoved(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(Collections.list(super.getHeaderNames()).stream().filter(name -> !isRemoved(name)).toList());
+        }
+
+        /**
+         * The encoding and length of the compressed body do not apply to the decompressed body.
+         */
+        private boolean isRemoved(String name) {
+            return HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) || HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name);
+        }
+
+    }
+
+    private class LimitedInputStream extends ServletInputStream {
+
+        private final InputStream decompressed;
+        private final ServletInputStream compressed;
+        private long count;
+
+        LimitedInputStream(InputStream decompressed, ServletInputStream compressed) {
+            this.decompressed = decompressed;
+            this.compressed = compressed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = decompressed.read();
+            if (b >= 0)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = decompressed.read(b, off, len);
+            if (n > 0)
+                count(n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return decompressed.available();
+        }
+
+        private void count(int n) {
+            count += n;
+            if (count > maxDecompressedSize)
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Decompressed body is larger than " + maxDecompressedSize + " bytes");
+        }
+
+        @Override
+        public boolean isFinished() {
+            return compressed.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return compressed.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException("Non-blocking reads of compressed bodies are not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            decompressed.close();
+        }
+
+    }
+
+}
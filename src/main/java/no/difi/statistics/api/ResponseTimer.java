@@ -0,0 +1,80 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.ServerTiming;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Times the writing of response bodies of {@link IngestRestController}, from right before the body is serialized until
+ * the request completes. For asynchronous requests, that is during the dispatch after the result is ready.
+ * <p>
+ * For requests timed by {@link ServerTimingFilter}, the time until the request is handled is recorded as
+ * authentication, and the <code>Server-Timing</code> header is added to the response right before the body is
+ * written.
+ */
+@ControllerAdvice(assignableTypes = IngestRestController.class)
+public class ResponseTimer implements ResponseBodyAdvice<Object>, HandlerInterceptor, WebMvcConfigurer {
+
+    private static final String startedAttribute = ResponseTimer.class.getName() + ".started";
+
+    private final IngestMetrics ingestMetrics;
+
+    public ResponseTimer(IngestMetrics ingestMetrics) {
+        this.ingestMetrics = ingestMetrics;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(this);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (request.getDispatcherType() == DispatcherType.REQUEST && request.getAttribute(ServerTimingFilter.attribute) instanceof ServerTiming serverTiming)
+            serverTiming.handling();
+        return true;
+    }
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (request instanceof ServletServerHttpRequest serverRequest) {
+            HttpServletRequest servletRequest = serverRequest.getServletRequest();
+            servletRequest.setAttribute(startedAttribute, System.nanoTime());
+            if (servletRequest.getAttribute(ServerTimingFilter.attribute) instanceof ServerTiming serverTiming) {
+                serverTiming.responding();
+                response.getHeaders().set(ServerTimingFilter.header, serverTiming.header());
+            }
+        }
+        return body;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(startedAttribute) instanceof Long started) {
+            request.removeAttribute(startedAttribute);
+            ingestMetrics.responded(System.nanoTime() - started);
+        }
+    }
+
+}
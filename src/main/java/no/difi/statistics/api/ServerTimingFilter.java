@@ -0,0 +1,51 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.ServerTiming;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Times requests for the <code>Server-Timing</code> header, when enabled with
+ * <code>no.difi.statistics.ingest.server-timing.enabled</code>. Runs before the security filters, so that the time
+ * until the request is handled counts as authentication. The header is written by {@link ResponseTimer} for responses
+ * of {@link IngestRestController}, and sent as a trailer for streamed responses.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ServerTimingFilter extends OncePerRequestFilter {
+
+    static final String attribute = ServerTiming.class.getName();
+    static final String header = "Server-Timing";
+
+    private final boolean enabled;
+
+    public ServerTimingFilter(@Value("${no.difi.statistics.ingest.server-timing.enabled:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        if (!enabled) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        ServerTiming serverTiming = new ServerTiming();
+        request.setAttribute(attribute, serverTiming);
+        ServerTiming.bind(serverTiming);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ServerTiming.unbind();
+        }
+    }
+
+}
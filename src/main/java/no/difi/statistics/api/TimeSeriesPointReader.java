@@ -0,0 +1,114 @@
+package no.difi.statistics.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the points of an ingest request body one at a time with the Jackson streaming parser, so that only the point
+ * currently being processed is held in memory. Invalid content is reported as <code>400 Bad Request</code>.
+ */
+class TimeSeriesPointReader implements Iterator<TimeSeriesPoint>, Closeable {
+
+    private final JsonParser parser;
+    private final ObjectReader pointReader;
+    private JsonToken nextToken;
+    private int count;
+    private long nanos;
+
+    TimeSeriesPointReader(ObjectMapper objectMapper, InputStream input) {
+        this.pointReader = objectMapper.readerFor(TimeSeriesPoint.class);
+        long started = System.nanoTime();
+        try {
+            this.parser = objectMapper.getFactory().createParser(input);
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+                throw invalid("Expected a JSON array of points", null);
+        } catch (IOException e) {
+            throw invalid("Invalid JSON", e);
+        }
+        this.nanos = System.nanoTime() - started;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextToken == null) {
+            long started = System.nanoTime();
+            try {
+                nextToken = parser.nextToken();
+            } catch (IOException e) {
+                throw invalid("Invalid JSON", e);
+            } finally {
+                nanos += System.nanoTime() - started;
+            }
+        }
+        if (nextToken == JsonToken.START_OBJECT)
+            return true;
+        if (nextToken == JsonToken.END_ARRAY)
+            return false;
+        throw invalid("Expected a point object, found " + nextToken, null);
+    }
+
+    @Override
+    public TimeSeriesPoint next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        nextToken = null;
+        TimeSeriesPoint point;
+        long started = System.nanoTime();
+        try {
+            point = pointReader.readValue(parser);
+        } catch (IOException e) {
+            throw invalid("Invalid point", e);
+        } finally {
+            nanos += System.nanoTime() - started;
+        }
+        count++;
+        return validated(point);
+    }
+
+    /**
+     * @return number of points read so far
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return time spent reading and parsing points so far, in nanoseconds, including waiting for the body to arrive
+     */
+    long nanos() {
+        return nanos;
+    }
+
+    static TimeSeriesPoint validated(TimeSeriesPoint point) {
+        if (point.getTimestamp() == null)
+            throw invalid("Point is missing timestamp", null);
+        for (String id : point.getMeasurements().keySet()) {
+            if (id.startsWith("category."))
+                throw invalid("Measurement ids cannot be prefixed with \"category.\"", null);
+            if (id.equals("timestamp"))
+                throw invalid("Measurement ids cannot be named \"timestamp\"", null);
+        }
+        return point;
+    }
+
+    private static ResponseStatusException invalid(String reason, Throwable cause) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, reason, cause);
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+}
@@ -0,0 +1,83 @@
+package no.difi.statistics.api;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free token bucket, refilled continuously at a fixed rate up to its capacity. The state is replaced with
+ * compare-and-set, so concurrent requests never block each other. Tokens can be charged after the fact, which may
+ * leave the bucket in debt until it has been refilled.
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private final AtomicReference<State> state;
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param capacity maximum number of tokens, which is the largest burst allowed
+     */
+    TokenBucket(double ratePerSecond, double capacity) {
+        this.tokensPerNano = ratePerSecond / 1_000_000_000d;
+        this.capacity = capacity;
+        this.state = new AtomicReference<>(new State(capacity, System.nanoTime()));
+    }
+
+    /**
+     * Takes the tokens if available. An amount larger than the capacity is taken from a full bucket.
+     *
+     * @return zero if the tokens were taken, otherwise nanoseconds until they are available
+     */
+    long tryAcquire(long amount) {
+        double required = Math.min(amount, capacity);
+        while (true) {
+            State current = state.get();
+            long now = System.nanoTime();
+            double tokens = current.tokensAt(now, tokensPerNano, capacity);
+            if (tokens < required)
+                return (long) Math.ceil((required - tokens) / tokensPerNano);
+            if (state.compareAndSet(current, new State(tokens - amount, now)))
+                return 0;
+        }
+    }
+
+    /**
+     * Takes the tokens regardless of how many are available.
+     */
+    void charge(long amount) {
+        while (true) {
+            State current = state.get();
+            long now = System.nanoTime();
+            if (state.compareAndSet(current, new State(current.tokensAt(now, tokensPerNano, capacity) - amount, now)))
+                return;
+        }
+    }
+
+    double available() {
+        return state.get().tokensAt(System.nanoTime(), tokensPerNano, capacity);
+    }
+
+    /**
+     * @return true if the bucket has been refilled to its capacity, so that it is no different from a new bucket
+     */
+    boolean full() {
+        return available() >= capacity;
+    }
+
+    private static class State {
+
+        private final double tokens;
+        private final long time;
+
+        State(double tokens, long time) {
+            this.tokens = tokens;
+            this.time = time;
+        }
+
+        double tokensAt(long now, double tokensPerNano, double capacity) {
+            return Math.min(capacity, tokens + Math.max(0, now - time) * tokensPerNano);
+        }
+
+    }
+
+}
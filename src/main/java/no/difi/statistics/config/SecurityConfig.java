@@ -27,8 +27,12 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 .antMatchers(POST, "/{owner}/{seriesName}/**").authenticated()
                 // No authentication required for getting last point on a series
                 .antMatchers(GET, "/{owner}/{seriesName}/{distance}/last").permitAll()
+                // No authentication required for getting last point on several series
+                .antMatchers(POST, "/last").permitAll()
                 .anyRequest().authenticated()
                 .and()
+                // Getting last points changes nothing, so there is nothing to forge
+                .csrf(csrf -> csrf.ignoringAntMatchers("/last"))
                 .oauth2ResourceServer(OAuth2ResourceServerConfigurer::jwt);
     }
 
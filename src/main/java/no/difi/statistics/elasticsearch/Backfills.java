@@ -0,0 +1,192 @@
+package no.difi.statistics.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.IngestService;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Switches the indices of a series to settings for bulk loading while historic points are backfilled: no periodic
+ * refresh and no replicas, so that every write is neither made searchable nor copied to other nodes until the backfill
+ * is done. Indices created during the backfill get the same settings from a temporary index template. When the
+ * backfill is closed, the settings the indices had are restored, indices created meanwhile get the settings of
+ * {@link IndexTemplate}, and the indices are refreshed.
+ * <p>
+ * The temporary index template is created only if it does not exist, and serves as the lock making sure a series is
+ * backfilled by only one instance of the API at a time. A backfill is also refused if any index of the series has
+ * periodic refresh turned off, as it is then being backfilled, or was left so by an earlier backfill. If the
+ * application stops during a backfill, the template is left behind and the settings are not restored, so the template
+ * must be deleted and the settings restored by hand before the series can be backfilled again.
+ */
+public class Backfills {
+
+    private static final Logger logger = LoggerFactory.getLogger(Backfills.class);
+    private static final String refreshInterval = "index.refresh_interval";
+    private static final String numberOfReplicas = "index.number_of_replicas";
+
+    private final RestClient client;
+    private final IndexTemplate.Settings templateSettings;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * @param templateSettings settings of the {@link IndexTemplate} to give indices created during a backfill, and
+     *                         to base the temporary index template on
+     */
+    public Backfills(RestClient client, IndexTemplate.Settings templateSettings) {
+        this.client = client;
+        this.templateSettings = templateSettings;
+    }
+
+    /**
+     * @throws IllegalStateException if the series is already being backfilled, or periodic refresh is turned off for
+     * any of its indices
+     */
+    public IngestService.Backfill start(TimeSeriesDefinition seriesDefinition) {
+        Backfill backfill = new Backfill(indexPattern(seriesDefinition));
+        try {
+            backfill.start();
+            return backfill;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start backfill of " + seriesDefinition, e);
+        }
+    }
+
+    /**
+     * @return pattern matching the names of all indices of the series, which are the names resolved for the series
+     * with the trailing date replaced by a wildcard
+     */
+    private static String indexPattern(TimeSeriesDefinition seriesDefinition) {
+        String indexName = IndexNameResolver.resolveIndexName()
+                .seriesDefinition(seriesDefinition)
+                .at(ZonedDateTime.now(ZoneOffset.UTC))
+                .single();
+        return indexName.replaceFirst("[0-9.]+$", "") + "*";
+    }
+
+    private static String refreshIntervalOf(IndexTemplate.Settings settings) {
+        return settings.refreshInterval() == null ? "-1" : settings.refreshInterval().toMillis() + "ms";
+    }
+
+    private class Backfill implements IngestService.Backfill {
+
+        private final String indexPattern;
+        private final String templateName;
+        private final Map<String, Map<String, String>> originalSettings = new HashMap<>();
+
+        Backfill(String indexPattern) {
+            this.indexPattern = indexPattern;
+            this.templateName = "backfill-" + indexPattern.replaceAll("[^a-zA-Z0-9]", "-").toLowerCase() + "-" + Integer.toHexString(indexPattern.hashCode());
+        }
+
+        void start() throws IOException {
+            originalSettings.putAll(settings());
+            for (Map.Entry<String, Map<String, String>> index : originalSettings.entrySet()) {
+                if ("-1".equals(index.getValue().get(refreshInterval)))
+                    throw new IllegalStateException("Periodic refresh of index " + index.getKey() + " is turned off, so " + indexPattern
+                            + " is being backfilled, or settings were not restored after an earlier backfill");
+            }
+            if (!new IndexTemplate(client, templateName, List.of(indexPattern), bulkLoadSettings(), null).create())
+                throw new IllegalStateException(indexPattern + " is already being backfilled, or index template " + templateName
+                        + " was left behind by an earlier backfill");
+            try {
+                putSettings(indexPattern, null, "-1", 0);
+            } catch (IOException | RuntimeException e) {
+                deleteTemplate();
+                throw e;
+            }
+            logger.info("Started backfill of {} with {} existing indices", indexPattern, originalSettings.size());
+        }
+
+        private IndexTemplate.Settings bulkLoadSettings() {
+            return templateSettings.copy()
+                    .priority(templateSettings.priority() + 100)
+                    .replicas(0)
+                    .refreshInterval(null);
+        }
+
+        @Override
+        public void close() {
+            try {
+                deleteTemplate();
+                for (String index : settings().keySet()) {
+                    Map<String, String> original = originalSettings.get(index);
+                    if (original != null)
+                        putSettings(index, original, null, null);
+                    else
+                        putSettings(index, null, refreshIntervalOf(templateSettings), templateSettings.replicas());
+                }
+                client.performRequest(new Request("POST", "/" + indexPattern + "/_refresh"));
+                logger.info("Completed backfill of {}", indexPattern);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to restore settings after backfill of " + indexPattern, e);
+            }
+        }
+
+        /**
+         * @return the refresh interval and number of replicas of each index of the series, as explicitly set
+         */
+        private Map<String, Map<String, String>> settings() throws IOException {
+            Request request = new Request("GET", "/" + indexPattern + "/_settings/" + refreshInterval + "," + numberOfReplicas);
+            request.addParameter("flat_settings", "true");
+            request.addParameter("allow_no_indices", "true");
+            Response response = client.performRequest(request);
+            Map<String, Map<String, String>> settings = new HashMap<>();
+            try (InputStream body = response.getEntity().getContent()) {
+                Iterator<Map.Entry<String, JsonNode>> indices = objectMapper.readTree(body).fields();
+                while (indices.hasNext()) {
+                    Map.Entry<String, JsonNode> index = indices.next();
+                    JsonNode indexSettings = index.getValue().path("settings");
+                    Map<String, String> values = new HashMap<>();
+                    values.put(refreshInterval, indexSettings.path(refreshInterval).textValue());
+                    values.put(numberOfReplicas, indexSettings.path(numberOfReplicas).textValue());
+                    settings.put(index.getKey(), values);
+                }
+            }
+            return settings;
+        }
+
+        /**
+         * @param values settings to put as given, where null resets a setting to its default, or null to put the
+         *               refresh interval and number of replicas given instead
+         */
+        private void putSettings(String indices, Map<String, String> values, String refresh, Integer replicas) throws IOException {
+            XContentBuilder body = jsonBuilder().startObject();
+            if (values != null) {
+                for (Map.Entry<String, String> value : values.entrySet())
+                    body.field(value.getKey(), value.getValue());
+            } else {
+                body.field(refreshInterval, refresh);
+                body.field(numberOfReplicas, replicas);
+            }
+            Request request = new Request("PUT", "/" + indices + "/_settings");
+            request.addParameter("allow_no_indices", "true");
+            request.setJsonEntity(Strings.toString(body.endObject()));
+            client.performRequest(request);
+        }
+
+        private void deleteTemplate() throws IOException {
+            client.performRequest(new Request("DELETE", "/_index_template/" + templateName));
+        }
+
+    }
+
+}
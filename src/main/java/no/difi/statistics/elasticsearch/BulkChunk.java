@@ -0,0 +1,143 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A chunk of the points of one ingest call, prepared for the bulk writer. Points resolving to the same document are
+ * collapsed into one request holding the last of them, as that is the version which would have won anyway. Every
+ * submitted position still gets a status: the status of the request that replaced it.
+ */
+class BulkChunk {
+
+    private final List<IndexRequest> requests = new ArrayList<>();
+    private final List<ZonedDateTime> timestamps = new ArrayList<>();
+    private final List<TimeSeriesPoint> points = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int[] positions = new int[64];
+    private int size;
+    private long bytes;
+
+    void add(IndexRequest request) {
+        add(request, null, null);
+    }
+
+    /**
+     * @param normalizedTimestamp the normalized timestamp of the point, or null if not known
+     * @param point the point the request was made from, or null if not known
+     */
+    void add(IndexRequest request, ZonedDateTime normalizedTimestamp, TimeSeriesPoint point) {
+        String key = key(request);
+        Integer slot = slots.get(key);
+        if (slot == null) {
+            slot = requests.size();
+            requests.add(request);
+            timestamps.add(normalizedTimestamp);
+            points.add(point);
+            slots.put(key, slot);
+        } else {
+            bytes -= BulkWriter.estimatedSize(requests.get(slot));
+            requests.set(slot, request);
+            points.set(slot, point);
+        }
+        bytes += BulkWriter.estimatedSize(request);
+        if (size == positions.length)
+            positions = Arrays.copyOf(positions, size * 2);
+        positions[size++] = slot;
+    }
+
+    /**
+     * @return number of points added, including collapsed duplicates
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated size of the requests to send
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the requests to send, one per distinct document
+     */
+    List<IndexRequest> requests() {
+        return requests;
+    }
+
+    /**
+     * @return keys identifying the distinct documents of this chunk
+     */
+    Set<String> keys() {
+        return slots.keySet();
+    }
+
+    /**
+     * @param requestStatuses status of each request returned by {@link #requests()}
+     * @return status of each point added, in the order they were added
+     */
+    IngestResponse.Status[] statuses(IngestResponse.Status[] requestStatuses) {
+        IngestResponse.Status[] statuses = new IngestResponse.Status[size];
+        for (int i = 0; i < size; i++)
+            statuses[i] = requestStatuses[positions[i]];
+        return statuses;
+    }
+
+    /**
+     * @param requestStatuses status of each request returned by {@link #requests()}, or null if all were stored
+     * @return normalized timestamp of the latest point stored, or null if none were
+     */
+    ZonedDateTime latest(IngestResponse.Status[] requestStatuses) {
+        ZonedDateTime latest = null;
+        for (int i = 0; i < timestamps.size(); i++) {
+            if (timestamps.get(i) == null || requestStatuses != null && requestStatuses[i] != IngestResponse.Status.Ok)
+                continue;
+            if (latest == null || timestamps.get(i).isAfter(latest))
+                latest = timestamps.get(i);
+        }
+        return latest;
+    }
+
+    /**
+     * @param requestStatuses status of each request returned by {@link #requests()}, or null if all were stored
+     * @return the points stored, one per distinct document, leaving out points not known
+     */
+    List<TimeSeriesPoint> points(IngestResponse.Status[] requestStatuses) {
+        List<TimeSeriesPoint> stored = new ArrayList<>(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            if (points.get(i) != null && (requestStatuses == null || requestStatuses[i] == IngestResponse.Status.Ok))
+                stored.add(points.get(i));
+        }
+        return stored;
+    }
+
+    /**
+     * @param requestStatuses status of each request returned by {@link #requests()}
+     * @return names of the indices that points were stored in
+     */
+    Set<String> indices(IngestResponse.Status[] requestStatuses) {
+        Set<String> indices = new HashSet<>();
+        for (int i = 0; i < requests.size(); i++) {
+            if (requestStatuses[i] == IngestResponse.Status.Ok)
+                indices.add(requests.get(i).index());
+        }
+        return indices;
+    }
+
+    private static String key(IndexRequest request) {
+        return request.index() + '/' + request.id();
+    }
+
+}
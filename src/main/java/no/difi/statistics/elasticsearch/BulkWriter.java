@@ -0,0 +1,478 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.api.IngestResponse;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Shared write pipeline for all ingest calls. Index requests submitted by concurrent callers are coalesced into bulk
+ * requests which are flushed when they reach a maximum number of actions, a maximum estimated size or when the oldest
+ * pending request has waited for the linger time. Submissions larger than a single bulk request are split into chunks,
+ * and at most a configured number of bulk requests are in flight at the same time. Items rejected because of
+ * back-pressure from Elasticsearch (<code>429</code> and <code>503</code>) are resubmitted on their own with jittered
+ * exponential backoff until they succeed, the maximum number of attempts is reached or the retry deadline passes. The
+ * per-item results are handed back to the callers in the order they submitted their requests.
+ */
+public class BulkWriter implements Closeable, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkWriter.class);
+    private static final int requestOverhead = 50; // Same per request estimate as used by BulkRequest
+
+    private final Transport transport;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long lingerNanos;
+    private final Duration submitTimeout;
+    private final int maxConcurrentRequests;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Unit> queue;
+    private final Queue<Unit> retries = new ConcurrentLinkedQueue<>();
+    private final Set<Unit> scheduledRetries = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retryScheduler;
+    private final Retry retry;
+    private final IngestMetrics ingestMetrics;
+    private final LongAdder retriedItems = new LongAdder();
+    private final LongAdder abandonedItems = new LongAdder();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    public BulkWriter(RestHighLevelClient client, int maxActions, long maxBytes, Duration linger, int queueCapacity, Duration submitTimeout, int maxConcurrentRequests, Retry retry, IngestMetrics ingestMetrics) {
+        this((request, listener) -> client.bulkAsync(request, RequestOptions.DEFAULT, listener),
+                maxActions, maxBytes, linger, queueCapacity, submitTimeout, maxConcurrentRequests, retry, ingestMetrics);
+    }
+
+    BulkWriter(Transport transport, int maxActions, long maxBytes, Duration linger, int queueCapacity, Duration submitTimeout, int maxConcurrentRequests, Retry retry, IngestMetrics ingestMetrics) {
+        this.transport = transport;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.lingerNanos = linger.toNanos();
+        this.submitTimeout = submitTimeout;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.inFlight = new Semaphore(maxConcurrentRequests);
+        this.retry = retry;
+        this.ingestMetrics = ingestMetrics;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-writer-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = new Thread(this::run, "bulk-writer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queue the requests for the next bulk flushes, split into chunks bounded by the maximum number of actions and the
+     * maximum estimated size of a bulk request. Blocks while the queue is full, which propagates back-pressure from
+     * Elasticsearch to the callers. If the queue stays full until the submit timeout, the chunks not queued by then
+     * get {@link IngestResponse.Status#Failed} for all their requests, while the chunks already queued are written as
+     * usual.
+     *
+     * @return the status of each request, in the order given
+     * @throws RuntimeException if not even the first chunk could be queued, so that none of the requests are written
+     */
+    public CompletableFuture<IngestResponse.Status[]> submit(List<IndexRequest> requests) {
+        if (requests.isEmpty())
+            return CompletableFuture.completedFuture(new IngestResponse.Status[0]);
+        if (closed)
+            throw new IllegalStateException("Bulk writer is closed");
+        List<Unit> units = new ArrayList<>();
+        int from = 0;
+        long bytes = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            long size = estimatedSize(requests.get(i));
+            if (i > from && (i - from >= maxActions || bytes + size > maxBytes)) {
+                units.add(new Unit(requests.subList(from, i), bytes, retry.deadline()));
+                from = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        units.add(new Unit(requests.subList(from, requests.size()), bytes, retry.deadline()));
+        List<CompletableFuture<IngestResponse.Status[]>> chunks = new ArrayList<>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            try {
+                enqueue(units.get(i));
+            } catch (RuntimeException e) {
+                if (i == 0)
+                    throw e;
+                logger.warn("Failing {} of {} chunks of a submission, as they could not be queued", units.size() - i, units.size(), e);
+                for (Unit unit : units.subList(i, units.size()))
+                    chunks.add(CompletableFuture.completedFuture(failed(unit.size())));
+                break;
+            }
+            chunks.add(units.get(i).result);
+        }
+        return concat(chunks);
+    }
+
+    private static IngestResponse.Status[] failed(int size) {
+        IngestResponse.Status[] statuses = new IngestResponse.Status[size];
+        Arrays.fill(statuses, IngestResponse.Status.Failed);
+        return statuses;
+    }
+
+    /**
+     * @return true if a chunk with the given number of actions and estimated size should be submitted without waiting
+     * for more requests
+     */
+    public boolean isFull(int actions, long bytes) {
+        return actions >= maxActions || bytes >= maxBytes;
+    }
+
+    /**
+     * @throws IllegalStateException if the writer was closed while the unit was being queued, and the unit was taken
+     * back out of the queue before the flusher or {@link #close()} got to it
+     */
+    private void enqueue(Unit unit) {
+        try {
+            if (!queue.offer(unit, submitTimeout.toMillis(), MILLISECONDS))
+                throw new RuntimeException("Timed out waiting for room in bulk write queue");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for room in bulk write queue", e);
+        }
+        // close() may have drained the queue for the last time after the check in submit, leaving the unit behind
+        if (closed && queue.remove(unit))
+            throw new IllegalStateException("Bulk writer is closed");
+    }
+
+    /**
+     * Concatenates the statuses of the chunks in their original order.
+     */
+    static CompletableFuture<IngestResponse.Status[]> concat(List<CompletableFuture<IngestResponse.Status[]>> chunks) {
+        if (chunks.size() == 1)
+            return chunks.get(0);
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture[0])).thenApply(v -> {
+            IngestResponse.Status[] statuses = new IngestResponse.Status[chunks.stream().mapToInt(c -> c.join().length).sum()];
+            int offset = 0;
+            for (CompletableFuture<IngestResponse.Status[]> chunk : chunks) {
+                IngestResponse.Status[] chunkStatuses = chunk.join();
+                System.arraycopy(chunkStatuses, 0, statuses, offset, chunkStatuses.length);
+                offset += chunkStatuses.length;
+            }
+            return statuses;
+        });
+    }
+
+    private void run() {
+        List<Unit> batch = new ArrayList<>();
+        int actions = 0;
+        long bytes = 0;
+        long deadline = 0;
+        while (!closed || !queue.isEmpty() || !batch.isEmpty() || !scheduledRetries.isEmpty() || !retries.isEmpty()) {
+            Unit unit = retries.poll();
+            if (unit == null) {
+                try {
+                    if (!batch.isEmpty())
+                        unit = queue.poll(deadline - System.nanoTime(), NANOSECONDS);
+                    else if (!scheduledRetries.isEmpty())
+                        unit = queue.poll(lingerNanos, NANOSECONDS); // Pick up retries when their backoff expires
+                    else
+                        unit = queue.poll(100, MILLISECONDS);
+                } catch (InterruptedException e) {
+                    unit = null;
+                }
+            }
+            if (unit != null && !batch.isEmpty() && (actions + unit.size() > maxActions || bytes + unit.bytes > maxBytes)) {
+                flush(batch);
+                batch = new ArrayList<>();
+                actions = 0;
+                bytes = 0;
+            }
+            if (unit != null) {
+                if (batch.isEmpty())
+                    deadline = System.nanoTime() + lingerNanos;
+                batch.add(unit);
+                actions += unit.size();
+                bytes += unit.bytes;
+            }
+            if (!batch.isEmpty() && (actions >= maxActions || bytes >= maxBytes || System.nanoTime() - deadline >= 0 || closed)) {
+                flush(batch);
+                batch = new ArrayList<>();
+                actions = 0;
+                bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Sends the batch as one bulk request. Blocks the flusher until a slot for another in-flight request is available,
+     * leaving new submissions queued meanwhile.
+     */
+    private void flush(List<Unit> batch) {
+        BulkRequest bulkRequest = new BulkRequest();
+        batch.forEach(unit -> unit.requests.forEach(bulkRequest::add));
+        inFlight.acquireUninterruptibly();
+        long started = System.nanoTime();
+        try {
+            transport.bulkAsync(bulkRequest, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    inFlight.release();
+                    ingestMetrics.bulk(System.nanoTime() - started);
+                    complete(batch, response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    inFlight.release();
+                    ingestMetrics.bulk(System.nanoTime() - started);
+                    fail(batch, bulkRequest, e);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            fail(batch, bulkRequest, e);
+        }
+    }
+
+    private void complete(List<Unit> batch, BulkResponse response) {
+        BulkItemResponse[] items = response.getItems();
+        int[] statusCounts = new int[IngestResponse.Status.values().length];
+        int offset = 0;
+        for (Unit unit : batch) {
+            List<Integer> retryable = new ArrayList<>();
+            for (int i = 0; i < unit.size(); i++) {
+                BulkItemResponse.Failure failure = items[offset + i].getFailure();
+                IngestResponse.Status status = status(failure);
+                unit.statuses[unit.origin(i)] = status;
+                statusCounts[status.ordinal()]++;
+                if (failure != null && Retry.isRetryable(failure.getStatus()))
+                    retryable.add(i);
+            }
+            offset += unit.size();
+            if (retryable.isEmpty()) {
+                unit.completeAttempt();
+                continue;
+            }
+            Duration backoff = retry.backoff(unit.attempt);
+            if (unit.attempt + 1 < retry.maxAttempts() && System.nanoTime() + backoff.toNanos() - unit.deadline < 0) {
+                retriedItems.add(retryable.size());
+                scheduleRetry(unit.retry(retryable), backoff);
+            } else {
+                abandonedItems.add(retryable.size());
+                logger.warn("Giving up {} bulk items rejected by Elasticsearch after {} attempts", retryable.size(), unit.attempt + 1);
+                unit.completeAttempt();
+            }
+        }
+        ingestMetrics.bulkItems(statusCounts);
+    }
+
+    /**
+     * Hands the unit to the flusher when the backoff expires. Once the writer is closing, retries are no longer
+     * scheduled, and the unit is given up right away.
+     */
+    private void scheduleRetry(Unit unit, Duration backoff) {
+        if (closed) {
+            giveUp(unit);
+            return;
+        }
+        scheduledRetries.add(unit);
+        try {
+            retryScheduler.schedule(() -> release(unit), backoff.toNanos(), NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            if (unit.claim()) {
+                scheduledRetries.remove(unit);
+                giveUp(unit);
+            }
+        }
+    }
+
+    /**
+     * Moves a scheduled retry to the flusher, unless it has already been moved. It is added to the retries before it
+     * is removed from the scheduled retries, so the flusher always finds it in one of them until it is sent.
+     */
+    private void release(Unit unit) {
+        if (unit.claim()) {
+            retries.add(unit);
+            scheduledRetries.remove(unit);
+        }
+    }
+
+    /**
+     * Completes the original chunk with the statuses of the last attempt, which are still failures for the items of
+     * the unit.
+     */
+    private void giveUp(Unit unit) {
+        abandonedItems.add(unit.size());
+        logger.warn("Giving up {} bulk items rejected by Elasticsearch as the bulk writer is closed", unit.size());
+        unit.completeAttempt();
+    }
+
+    private static void fail(List<Unit> batch, BulkRequest bulkRequest, Exception e) {
+        logger.warn("Bulk request with {} actions failed", bulkRequest.numberOfActions(), e);
+        batch.forEach(unit -> unit.result.completeExceptionally(e));
+    }
+
+    static IngestResponse.Status status(BulkItemResponse.Failure failure) {
+        if (failure == null)
+            return IngestResponse.Status.Ok;
+        switch (failure.getStatus()) {
+            case OK: return IngestResponse.Status.Ok;
+            case CONFLICT: return IngestResponse.Status.Conflict;
+            default: return IngestResponse.Status.Failed;
+        }
+    }
+
+    static long estimatedSize(IndexRequest request) {
+        return (request.source() != null ? request.source().length() : 0) + requestOverhead;
+    }
+
+    /**
+     * Flushes everything queued so far, stops the flusher thread and waits for in-flight bulk requests to complete.
+     * Retries waiting for their backoff are sent right away instead, and items still rejected by them are not retried
+     * again. Every submission is completed before this returns: anything left behind when the wait times out is
+     * completed with the statuses it has, or exceptionally if it was never sent.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduledRetries.forEach(this::release);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+            if (inFlight.tryAcquire(maxConcurrentRequests, 30, TimeUnit.SECONDS))
+                inFlight.release(maxConcurrentRequests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retryScheduler.shutdownNow();
+        scheduledRetries.forEach(unit -> {
+            if (unit.claim()) {
+                scheduledRetries.remove(unit);
+                giveUp(unit);
+            }
+        });
+        for (Unit unit = retries.poll(); unit != null; unit = retries.poll())
+            giveUp(unit);
+        for (Unit unit = queue.poll(); unit != null; unit = queue.poll())
+            unit.result.completeExceptionally(new IllegalStateException("Bulk writer closed before the requests were sent"));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("statistics.ingest.bulk.item.retries", retriedItems, LongAdder::sum)
+                .description("Bulk items resubmitted after being rejected by Elasticsearch")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.bulk.item.retry.give.ups", abandonedItems, LongAdder::sum)
+                .description("Bulk items still rejected by Elasticsearch when retries were exhausted")
+                .register(registry);
+    }
+
+    /**
+     * Sends bulk requests to Elasticsearch.
+     */
+    interface Transport {
+
+        void bulkAsync(BulkRequest request, ActionListener<BulkResponse> listener);
+
+    }
+
+    /**
+     * Requests submitted by a single caller, which are always flushed as part of one bulk request. A unit is either a
+     * chunk of a submission, or the items of such a chunk being retried.
+     */
+    private static class Unit {
+
+        private final List<IndexRequest> requests;
+        private final long bytes;
+        private final long deadline;
+        private final int attempt;
+        private final IngestResponse.Status[] statuses;
+        private final int[] origins;
+        private final CompletableFuture<IngestResponse.Status[]> result;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        Unit(List<IndexRequest> requests, long bytes, long deadline) {
+            this(requests, bytes, deadline, 0, new IngestResponse.Status[requests.size()], null, new CompletableFuture<>());
+        }
+
+        private Unit(List<IndexRequest> requests, long bytes, long deadline, int attempt, IngestResponse.Status[] statuses, int[] origins, CompletableFuture<IngestResponse.Status[]> result) {
+            this.requests = requests;
+            this.bytes = bytes;
+            this.deadline = deadline;
+            this.attempt = attempt;
+            this.statuses = statuses;
+            this.origins = origins;
+            this.result = result;
+        }
+
+        int size() {
+            return requests.size();
+        }
+
+        /**
+         * @return position of the request in the statuses of the original chunk
+         */
+        int origin(int index) {
+            return origins == null ? index : origins[index];
+        }
+
+        /**
+         * @return a unit for the next attempt of the given requests, sharing the statuses of the original chunk
+         */
+        Unit retry(List<Integer> indices) {
+            List<IndexRequest> retryRequests = new ArrayList<>(indices.size());
+            int[] retryOrigins = new int[indices.size()];
+            long retryBytes = 0;
+            for (int i = 0; i < indices.size(); i++) {
+                IndexRequest request = requests.get(indices.get(i));
+                retryRequests.add(request);
+                retryOrigins[i] = origin(indices.get(i));
+                retryBytes += estimatedSize(request);
+            }
+            return new Unit(retryRequests, retryBytes, deadline, attempt + 1, statuses, retryOrigins, result);
+        }
+
+        /**
+         * Claims a scheduled retry for being sent or given up, which only one of them may do.
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        /**
+         * Completes the original chunk, as this was its last outstanding attempt.
+         */
+        void completeAttempt() {
+            result.complete(statuses);
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Encodes points as documents for indexing, in the content type used for bulk requests to Elasticsearch.
+ */
+public interface DocumentEncoder {
+
+    String timeFieldName = "timestamp";
+
+    XContentType contentType();
+
+    /**
+     * @param normalizedTimestamp timestamp already normalized with {@link Timestamp#normalize}
+     */
+    byte[] encode(TimeSeriesPoint dataPoint, ZonedDateTime normalizedTimestamp);
+
+    /**
+     * The bulk API of the high level client only accepts JSON and SMILE bodies.
+     */
+    static DocumentEncoder forContentType(XContentType contentType) {
+        switch (contentType) {
+            case JSON: return new JsonDocumentEncoder();
+            case SMILE: return new SmileDocumentEncoder();
+            default: throw new IllegalArgumentException("Unsupported content type for bulk requests: " + contentType + ". Use JSON or SMILE.");
+        }
+    }
+
+    static void validateMeasurementId(String id) {
+        if (id.startsWith("category.")) throw new IllegalArgumentException("Measurement ids cannot be prefixed with \"category.\"");
+        if (id.equals(timeFieldName)) throw new IllegalArgumentException("Measurement ids cannot be named \"" + timeFieldName + "\"");
+    }
+
+}
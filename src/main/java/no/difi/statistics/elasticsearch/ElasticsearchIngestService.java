@@ -1,152 +1,242 @@
 package no.difi.statistics.elasticsearch;
 
+import no.difi.statistics.IngestMetrics;
 import no.difi.statistics.IngestService;
+import no.difi.statistics.ServerTiming;
 import no.difi.statistics.api.IngestResponse;
-import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.api.IngestStatusCollector;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
-import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.support.IndicesOptions;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.search.aggregations.bucket.terms.Terms;
-import org.elasticsearch.search.sort.SortOrder;
-import org.elasticsearch.xcontent.XContentBuilder;
-
-import java.io.IOException;
+
 import java.time.ZonedDateTime;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-
-import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
-import static org.elasticsearch.search.aggregations.BucketOrder.key;
-import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
-import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class ElasticsearchIngestService implements IngestService {
 
-    private final RestHighLevelClient client;
-    private static final String timeFieldName = "timestamp";
-    private static final String indexType = "default";
-
-    public ElasticsearchIngestService(RestHighLevelClient client) {
-        this.client = client;
+    private final BulkWriter bulkWriter;
+    private final IndexNameCache indexNameCache;
+    private final DocumentEncoder documentEncoder;
+    private final Journal journal;
+    private final LastPointCache lastPointCache;
+    private final LastPointSearch lastPointSearch;
+    private final IndexCatalog indexCatalog;
+    private final Backfills backfills;
+    private final Rollups rollups;
+    private final IngestMetrics ingestMetrics;
+    private final Executor executor;
+
+    /**
+     * @param journal journal to write points to instead of writing them directly to Elasticsearch, or null
+     * @param indexCatalog catalog to record indices created by ingests in, or null
+     * @param rollups rollups to add the points stored to, or null
+     * @param executor executor for submitting chunks held back by earlier writes, and for recording chunks as stored,
+     * keeping this work off the threads completing bulk requests
+     */
+    public ElasticsearchIngestService(
+            BulkWriter bulkWriter,
+            IndexNameCache indexNameCache,
+            DocumentEncoder documentEncoder,
+            Journal journal,
+            LastPointCache lastPointCache,
+            LastPointSearch lastPointSearch,
+            IndexCatalog indexCatalog,
+            Backfills backfills,
+            Rollups rollups,
+            IngestMetrics ingestMetrics,
+            Executor executor) {
+        this.bulkWriter = bulkWriter;
+        this.indexNameCache = indexNameCache;
+        this.documentEncoder = documentEncoder;
+        this.journal = journal;
+        this.lastPointCache = lastPointCache;
+        this.lastPointSearch = lastPointSearch;
+        this.indexCatalog = indexCatalog;
+        this.backfills = backfills;
+        this.rollups = rollups;
+        this.ingestMetrics = ingestMetrics;
+        this.executor = executor;
     }
 
+    /**
+     * Index the points as they are pulled from the iterator. Whenever enough points for a bulk request have been read,
+     * they are handed to the bulk writer while the remaining points are still being read, so no more than a chunk of
+     * points is held in memory at a time. Duplicates within a chunk are collapsed, and a chunk containing a document
+     * that is still being written by an earlier chunk is held back until that write completes, so that the last
+     * version of a document in the request is the one stored. The statuses of a chunk are passed to the collector
+     * once it and all chunks before it have completed. The last point of the series, and the rollups of it, are updated
+     * as chunks are stored.
+     * <p>
+     * With a journal, the points are acknowledged as soon as they are durably journaled, and written to Elasticsearch
+     * in the background. They then count as stored for the last point of the series, and for the rollups of it, as soon
+     * as they are journaled.
+     */
     @Override
-    public IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints) {
-        BulkRequest bulkRequest = new BulkRequest();
-        for (TimeSeriesPoint point : dataPoints) {
-            bulkRequest.add(
-                    new IndexRequest(
-                            IndexNameResolver.resolveIndexName()
-                                    .seriesDefinition(seriesDefinition)
-                                    .at(Timestamp.normalize(point.getTimestamp(), seriesDefinition.getDistance()))
-                                    .single(),
-                            indexType,
-                            IdResolver.id(point, seriesDefinition)
-                    )
-                            .source(document(point, seriesDefinition))
-                            .create(false) // false->tillate update av requests. true->feilar på same request fleire gonger
-            );
+    public <R> CompletableFuture<R> ingestAsync(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, IngestStatusCollector<R> collector) {
+        if (journal != null)
+            return CompletableFuture.completedFuture(journal(seriesDefinition, dataPoints, collector));
+        CompletableFuture<IngestStatusCollector<R>> collected = CompletableFuture.completedFuture(collector);
+        Map<String, CompletableFuture<IngestResponse.Status[]>> inFlight = new ConcurrentHashMap<>();
+        BulkChunk chunk = new BulkChunk();
+        long encodeNanos = 0;
+        while (dataPoints.hasNext()) {
+            TimeSeriesPoint point = dataPoints.next();
+            long started = System.nanoTime();
+            add(chunk, point, seriesDefinition);
+            encodeNanos += System.nanoTime() - started;
+            if (bulkWriter.isFull(chunk.size(), chunk.bytes())) {
+                collected = collected.thenCombine(submit(seriesDefinition, chunk, inFlight), ElasticsearchIngestService::collect);
+                chunk = new BulkChunk();
+            }
         }
-        BulkResponse response;
-        try {
-            response = client.bulk(bulkRequest, RequestOptions.DEFAULT);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to index list of points", e);
-        }
-        return response(response);
+        collected = collected.thenCombine(submit(seriesDefinition, chunk, inFlight), ElasticsearchIngestService::collect);
+        encoded(encodeNanos);
+        return collected.handle((c, e) -> {
+            if (e != null)
+                throw new RuntimeException("Failed to index list of points", e instanceof CompletionException ? e.getCause() : e);
+            return c.build();
+        });
     }
 
-    @Override
-    public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition) {
-        List<String> indexNames = IndexNameResolver.resolveIndexName().seriesDefinition(seriesDefinition).list();
-        SearchRequest request = new SearchRequest(indexNames.toArray(new String[0]))
-                .types(indexType)
-                .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
-                .source(searchSource()
-                        .sort(timeFieldName, SortOrder.ASC)
-                        .aggregation(terms("last").field("timestamp").size(10_000).order(key(false)).size(1))
-                        .size(0) // We are after aggregation and not the search hits
-                );
-        SearchResponse response;
-        try {
-            response = client.search(request, RequestOptions.DEFAULT);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to search", e);
+    private static <R> IngestStatusCollector<R> collect(IngestStatusCollector<R> collector, IngestResponse.Status[] statuses) {
+        for (IngestResponse.Status status : statuses)
+            collector.status(status);
+        return collector;
+    }
+
+    private <R> R journal(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, IngestStatusCollector<R> collector) {
+        BulkChunk chunk = new BulkChunk();
+        long encodeNanos = 0;
+        while (dataPoints.hasNext()) {
+            TimeSeriesPoint point = dataPoints.next();
+            long started = System.nanoTime();
+            add(chunk, point, seriesDefinition);
+            encodeNanos += System.nanoTime() - started;
+            if (bulkWriter.isFull(chunk.size(), chunk.bytes())) {
+                journal.append(chunk.requests());
+                stored(seriesDefinition, chunk, null);
+                for (int i = 0; i < chunk.size(); i++)
+                    collector.status(IngestResponse.Status.Ok);
+                chunk = new BulkChunk();
+            }
         }
-        return pointFromLastAggregation(response);
+        journal.append(chunk.requests());
+        stored(seriesDefinition, chunk, null);
+        for (int i = 0; i < chunk.size(); i++)
+            collector.status(IngestResponse.Status.Ok);
+        encoded(encodeNanos);
+        return collector.build();
     }
 
-    private static TimeSeriesPoint pointFromLastAggregation(SearchResponse response) {
-        if (response.getAggregations() == null)
-            return null;
-        if (response.getAggregations().get("last") == null)
-            throw new RuntimeException("No last aggregation in result");
-        if (response.getAggregations().<Terms>get("last").getBuckets().size() == 0)
-            return null;
-        if (response.getAggregations().<Terms>get("last").getBuckets().size() > 1)
-            throw new RuntimeException("Too many buckets in last aggregation: "
-                    + response.getAggregations().<Terms>get("last").getBuckets().size());
-        Terms.Bucket bucket = response.getAggregations().<Terms>get("last").getBuckets().get(0);
-        return TimeSeriesPoint.builder()
-                .timestamp(Timestamp.parse(bucket.getKeyAsString()))
-                .build();
+    private void encoded(long nanos) {
+        ingestMetrics.encoded(nanos);
+        ServerTiming.record(ServerTiming.Phase.encode, nanos);
     }
 
-    private IngestResponse response(BulkResponse response) {
-        IngestResponse.Builder ingestResponse = IngestResponse.builder();
-        response.iterator().forEachRemaining(i -> ingestResponse.status(status(i.getFailure())));
-        return ingestResponse.build();
+    /**
+     * @param requestStatuses status of each request of the chunk, or null if all were stored
+     */
+    private void stored(TimeSeriesDefinition seriesDefinition, BulkChunk chunk, IngestResponse.Status[] requestStatuses) {
+        ZonedDateTime normalizedTimestamp = chunk.latest(requestStatuses);
+        if (normalizedTimestamp != null)
+            lastPointCache.stored(seriesDefinition, normalizedTimestamp);
+        if (rollups != null)
+            rollups.stored(seriesDefinition, chunk.points(requestStatuses));
     }
 
-    private IngestResponse.Status status(BulkItemResponse.Failure failure) {
-        if (failure == null)
-            return IngestResponse.Status.Ok;
-        switch (failure.getStatus()) {
-            case OK: return IngestResponse.Status.Ok;
-            case CONFLICT: return IngestResponse.Status.Conflict;
-            default: return IngestResponse.Status.Failed;
-        }
+    /**
+     * Submits the chunk to the bulk writer, or chains it to complete earlier writes of the same documents first
+     * without blocking the caller.
+     */
+    private CompletableFuture<IngestResponse.Status[]> submit(TimeSeriesDefinition seriesDefinition, BulkChunk chunk, Map<String, CompletableFuture<IngestResponse.Status[]>> inFlight) {
+        CompletableFuture<Void> earlierWrites = earlierWrites(chunk, inFlight);
+        CompletableFuture<IngestResponse.Status[]> result = earlierWrites == null
+                ? bulkWriter.submit(chunk.requests())
+                : earlierWrites.thenComposeAsync(ignored -> bulkWriter.submit(chunk.requests()), executor);
+        chunk.keys().forEach(key -> inFlight.put(key, result));
+        // The statuses are handed back once the chunk is recorded as stored, so the last point is up to date by then
+        return result.whenCompleteAsync((statuses, e) -> {
+            if (statuses != null) {
+                stored(seriesDefinition, chunk, statuses);
+                if (indexCatalog != null)
+                    chunk.indices(statuses).forEach(indexCatalog::created);
+            }
+            chunk.keys().forEach(key -> inFlight.remove(key, result));
+        }, executor).thenApply(chunk::statuses);
     }
 
-    private static XContentBuilder document(TimeSeriesPoint dataPoint, TimeSeriesDefinition seriesDefinition) {
-        try {
-            XContentBuilder builder = jsonBuilder().startObject();
-            addField(builder, timeFieldName, format(dataPoint.getTimestamp(), seriesDefinition.getDistance()));
-            dataPoint.getCategories().ifPresent(cs -> cs.forEach((key, value) -> addCategoryField(builder, key, value)));
-            dataPoint.getMeasurements().forEach((key, value) -> addMeasurementField(builder, key, value));
-            return builder.endObject();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * @return future completing when the writes in flight of any of the documents of the chunk have completed,
+     * successfully or not, or null if there are none
+     */
+    private static CompletableFuture<Void> earlierWrites(BulkChunk chunk, Map<String, CompletableFuture<IngestResponse.Status[]>> inFlight) {
+        Set<CompletableFuture<IngestResponse.Status[]>> earlierWrites = new HashSet<>();
+        for (String key : chunk.keys()) {
+            CompletableFuture<IngestResponse.Status[]> earlierWrite = inFlight.get(key);
+            if (earlierWrite != null && !earlierWrite.isDone())
+                earlierWrites.add(earlierWrite);
         }
+        if (earlierWrites.isEmpty())
+            return null;
+        return CompletableFuture.allOf(earlierWrites.stream()
+                .map(earlierWrite -> earlierWrite.handle((statuses, e) -> null))
+                .toArray(CompletableFuture[]::new));
     }
 
-    private static void addMeasurementField(XContentBuilder builder, String id, long value) {
-        if (id.startsWith("category.")) throw new IllegalArgumentException("Measurement ids cannot be prefixed with \"category.\"");
-        if (id.equals(timeFieldName)) throw new IllegalArgumentException("Measurement ids cannot be named \"" + timeFieldName + "\"");
-        addField(builder, id, value);
+    /**
+     * Prepares the point for indexing in a single pass, normalizing its timestamp only once.
+     */
+    private void add(BulkChunk chunk, TimeSeriesPoint point, TimeSeriesDefinition seriesDefinition) {
+        ZonedDateTime normalizedTimestamp = Timestamp.normalize(point.getTimestamp(), seriesDefinition.getDistance());
+        chunk.add(indexRequest(point, seriesDefinition, normalizedTimestamp), normalizedTimestamp, point);
     }
 
-    private static void addCategoryField(XContentBuilder builder, String key, String value) {
-        addField(builder, "category." + key, value);
+    private IndexRequest indexRequest(TimeSeriesPoint point, TimeSeriesDefinition seriesDefinition, ZonedDateTime normalizedTimestamp) {
+        return new IndexRequest(indexNameCache.indexName(seriesDefinition, normalizedTimestamp))
+                .id(IdResolver.id(point, seriesDefinition))
+                .source(documentEncoder.encode(point, normalizedTimestamp), documentEncoder.contentType())
+                .create(false); // false->tillate update av requests. true->feilar på same request fleire gonger
     }
 
-    private static void addField(XContentBuilder builder, String key, Object value) {
-        try {
-            builder.field(key, value);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * The last point is looked up in the cache, and only searched for in Elasticsearch when the series is not cached.
+     */
+    @Override
+    public CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition) {
+        return timed(1, () -> lastPointCache.last(seriesDefinition, () -> lastPointSearch.last(seriesDefinition)));
     }
 
-    private static String format(ZonedDateTime timestamp, MeasurementDistance distance) {
-        return Timestamp.normalize(timestamp, distance).toString();
+    /**
+     * Series not in the cache are searched for together, with multi-search requests.
+     */
+    @Override
+    public CompletableFuture<Map<TimeSeriesDefinition, TimeSeriesPoint>> lastAsync(List<TimeSeriesDefinition> seriesDefinitions) {
+        return timed(seriesDefinitions.size(), () -> lastPointCache.last(seriesDefinitions, lastPointSearch::last));
+    }
+
+    private <T> CompletableFuture<T> timed(int series, Supplier<CompletableFuture<T>> lookup) {
+        long started = System.nanoTime();
+        return lookup.get().whenComplete((result, e) -> ingestMetrics.last(series, System.nanoTime() - started));
+    }
+
+    /**
+     * Backfills are not supported with a journal, as closing a backfill restores the settings of the indices while
+     * points of it may still be waiting in the journal to be written.
+     */
+    @Override
+    public Backfill backfill(TimeSeriesDefinition seriesDefinition) {
+        if (journal != null)
+            throw new UnsupportedOperationException("Backfill is not supported with a journal");
+        return backfills.start(seriesDefinition);
     }
 
 }
@@ -0,0 +1,135 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The names of the indices existing in Elasticsearch, loaded periodically and kept up to date with indices created by
+ * ingests through this instance. Index names resolved for a series cover every period the series could have points
+ * in, and most of them do not exist, so searches are narrowed down to the existing ones. Indices created through other
+ * instances of the API are not known until the next load, so searches for the last point of a series keep its newest
+ * index regardless.
+ */
+public class IndexCatalog implements MeterBinder, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexCatalog.class);
+
+    private final RestClient client;
+    private final ScheduledExecutorService loader;
+    private final Set<String> added = ConcurrentHashMap.newKeySet();
+    private volatile Set<String> indices;
+    private final LongAdder skippedIndices = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+
+    public IndexCatalog(RestClient client, Duration loadInterval) {
+        this.client = client;
+        this.loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-catalog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loader.scheduleWithFixedDelay(this::load, 0, loadInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the given index names that exist, in the same order, or all of them if the indices have not been loaded
+     * yet. Wildcard expressions are kept.
+     */
+    public List<String> existing(Collection<String> indexNames) {
+        Set<String> current = indices;
+        if (current == null)
+            return new ArrayList<>(indexNames);
+        List<String> existing = new ArrayList<>(indexNames.size());
+        for (String indexName : indexNames) {
+            if (indexName.indexOf('*') >= 0 || current.contains(indexName))
+                existing.add(indexName);
+        }
+        skippedIndices.add(indexNames.size() - existing.size());
+        return existing;
+    }
+
+    /**
+     * Records that an index exists, as points have been stored in it.
+     */
+    public void created(String indexName) {
+        if (added.add(indexName)) {
+            // Retry if the indices were replaced meanwhile, as the replacement may not include this one
+            Set<String> current;
+            do {
+                current = indices;
+                if (current != null)
+                    current.add(indexName);
+            } while (current != indices);
+        }
+    }
+
+    private void load() {
+        // Indices created from now on may be missing from the response, and are added to it afterwards
+        added.clear();
+        Set<String> loaded = ConcurrentHashMap.newKeySet();
+        try {
+            Response response = client.performRequest(new Request("GET", "/_cat/indices?h=index"));
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank())
+                        loaded.add(line.trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            loadFailures.increment();
+            logger.warn("Failed to load index names, keeping the ones loaded before", e);
+            return;
+        }
+        indices = loaded;
+        loaded.addAll(added);
+    }
+
+    private int size() {
+        Set<String> current = indices;
+        return current == null ? 0 : current.size();
+    }
+
+    @Override
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("statistics.ingest.index.catalog.size", this, IndexCatalog::size)
+                .description("Number of indices known to exist")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.index.catalog.skipped", skippedIndices, LongAdder::sum)
+                .description("Index names left out of searches as the indices do not exist")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.index.catalog.load.failures", loadFailures, LongAdder::sum)
+                .description("Failed loads of index names from Elasticsearch")
+                .register(registry);
+    }
+
+}
@@ -0,0 +1,115 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+
+/**
+ * Bounded, least-recently-used cache of index names resolved by {@link IndexNameResolver}. Entries are keyed by series
+ * and the UTC day of the normalized timestamp, as no index spans less than a day, so all points of a minute series
+ * within the same day share one entry. Index names are resolved by the UTC time, so the day must be too: timestamps
+ * with different offsets on either side of midnight UTC would otherwise share a key but not an index.
+ */
+public class IndexNameCache implements MeterBinder {
+
+    private final Map<Key, String> indexNames;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public IndexNameCache(int maxSize) {
+        this.indexNames = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param normalizedTimestamp timestamp already normalized with {@link Timestamp#normalize}
+     */
+    public String indexName(TimeSeriesDefinition seriesDefinition, ZonedDateTime normalizedTimestamp) {
+        Key key = new Key(seriesDefinition, normalizedTimestamp.withZoneSameInstant(ZoneOffset.UTC).truncatedTo(DAYS));
+        String indexName;
+        synchronized (indexNames) {
+            indexName = indexNames.get(key);
+        }
+        if (indexName != null) {
+            hits.increment();
+            return indexName;
+        }
+        misses.increment();
+        indexName = IndexNameResolver.resolveIndexName().seriesDefinition(seriesDefinition).at(normalizedTimestamp).single();
+        synchronized (indexNames) {
+            indexNames.put(key, indexName);
+        }
+        return indexName;
+    }
+
+    private int size() {
+        synchronized (indexNames) {
+            return indexNames.size();
+        }
+    }
+
+    private double hitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? Double.NaN : (double) hitCount / total;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("statistics.ingest.index.name.cache", hits, LongAdder::sum)
+                .tag("result", "hit")
+                .description("Lookups of index names found in the cache")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.index.name.cache", misses, LongAdder::sum)
+                .tag("result", "miss")
+                .description("Lookups of index names not found in the cache")
+                .register(registry);
+        Gauge.builder("statistics.ingest.index.name.cache.hit.ratio", this, IndexNameCache::hitRatio)
+                .description("Ratio of index name lookups found in the cache")
+                .register(registry);
+        Gauge.builder("statistics.ingest.index.name.cache.size", this, IndexNameCache::size)
+                .description("Number of cached index names")
+                .register(registry);
+    }
+
+    private static class Key {
+
+        private final TimeSeriesDefinition seriesDefinition;
+        private final ZonedDateTime day;
+
+        Key(TimeSeriesDefinition seriesDefinition, ZonedDateTime day) {
+            this.seriesDefinition = seriesDefinition;
+            this.day = day;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return seriesDefinition.equals(that.seriesDefinition) && day.equals(that.day);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(seriesDefinition, day);
+        }
+
+    }
+
+}
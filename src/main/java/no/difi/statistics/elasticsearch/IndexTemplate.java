@@ -0,0 +1,223 @@
+package no.difi.statistics.elasticsearch;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+
+import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Installs a composable index template for the indices of the series, so that indices created by the first bulk write
+ * to them get their mapping up front rather than through dynamic mapping updates of the cluster state while points are
+ * being ingested. The timestamp is mapped as a date, categories as keywords and measurements as longs, with no other
+ * dynamic detection of field types. Categories also keep the <code>.keyword</code> sub-field dynamic mapping gives
+ * strings, so that queries written against indices mapped dynamically work the same. The template only applies to
+ * indices created after it is installed.
+ * <p>
+ * The template is installed in the background, retrying until Elasticsearch accepts it, so that starting the
+ * application does not depend on Elasticsearch being available.
+ */
+public class IndexTemplate implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexTemplate.class);
+    private static final String timeFieldName = "timestamp";
+
+    private final RestClient client;
+    private final String name;
+    private final List<String> indexPatterns;
+    private final Settings settings;
+    private final Duration retryInterval;
+    private final Thread installer;
+
+    /**
+     * @param indexPatterns patterns matching the names of the indices of all series
+     */
+    public IndexTemplate(RestClient client, String name, List<String> indexPatterns, Settings settings, Duration retryInterval) {
+        this.client = client;
+        this.name = name;
+        this.indexPatterns = indexPatterns;
+        this.settings = settings;
+        this.retryInterval = retryInterval;
+        this.installer = new Thread(this::installUntilAccepted, "index-template");
+        this.installer.setDaemon(true);
+    }
+
+    public void start() {
+        installer.start();
+    }
+
+    private void installUntilAccepted() {
+        try {
+            while (true) {
+                try {
+                    install();
+                    logger.info("Installed index template {} for {}", name, indexPatterns);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to install index template {}, retrying in {}", name, retryInterval, e);
+                    Thread.sleep(retryInterval.toMillis());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Installs the template, replacing any earlier version of it.
+     */
+    public void install() throws IOException {
+        Request request = new Request("PUT", "/_index_template/" + name);
+        request.setJsonEntity(Strings.toString(body()));
+        client.performRequest(request);
+    }
+
+    /**
+     * Installs the template unless a template of the same name exists, which Elasticsearch decides atomically.
+     *
+     * @return false if a template of the same name exists
+     */
+    public boolean create() throws IOException {
+        Request request = new Request("PUT", "/_index_template/" + name);
+        request.addParameter("create", "true");
+        request.setJsonEntity(Strings.toString(body()));
+        try {
+            client.performRequest(request);
+            return true;
+        } catch (ResponseException e) {
+            if (e.getResponse().getStatusLine().getStatusCode() == 400 && e.getMessage().contains("already exists"))
+                return false;
+            throw e;
+        }
+    }
+
+    XContentBuilder body() {
+        try {
+            XContentBuilder body = jsonBuilder().startObject();
+            body.field("index_patterns", indexPatterns);
+            body.field("priority", settings.priority);
+            body.startObject("template");
+            body.startObject("settings")
+                    .field("number_of_shards", settings.shards)
+                    .field("number_of_replicas", settings.replicas)
+                    .field("refresh_interval", settings.refreshInterval == null ? "-1" : settings.refreshInterval.toMillis() + "ms")
+                    .endObject();
+            body.startObject("mappings")
+                    .field("date_detection", false)
+                    .field("numeric_detection", false);
+            body.startArray("dynamic_templates");
+            body.startObject().startObject("categories")
+                    .field("path_match", "category.*")
+                    .field("match_mapping_type", "string")
+                    .startObject("mapping")
+                    .field("type", "keyword")
+                    .startObject("fields")
+                    .startObject("keyword").field("type", "keyword").field("ignore_above", 256).endObject()
+                    .endObject()
+                    .endObject()
+                    .endObject().endObject();
+            body.startObject().startObject("measurements")
+                    .field("match_mapping_type", "long")
+                    .startObject("mapping").field("type", "long").field("index", settings.indexMeasurements).endObject()
+                    .endObject().endObject();
+            body.endArray();
+            body.startObject("properties")
+                    .startObject(timeFieldName).field("type", "date").endObject()
+                    .endObject();
+            body.endObject(); // mappings
+            body.endObject(); // template
+            return body.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        installer.interrupt();
+    }
+
+    public static Settings settings() {
+        return new Settings();
+    }
+
+    public static class Settings {
+
+        private int priority = 100;
+        private int shards = 1;
+        private int replicas = 1;
+        private Duration refreshInterval = Duration.ofSeconds(1);
+        private boolean indexMeasurements = true;
+
+        private Settings() {
+        }
+
+        public Settings copy() {
+            return new Settings()
+                    .priority(priority)
+                    .shards(shards)
+                    .replicas(replicas)
+                    .refreshInterval(refreshInterval)
+                    .indexMeasurements(indexMeasurements);
+        }
+
+        public int priority() {
+            return priority;
+        }
+
+        public int replicas() {
+            return replicas;
+        }
+
+        /**
+         * @return the refresh interval, or null if periodic refresh is disabled
+         */
+        public Duration refreshInterval() {
+            return refreshInterval;
+        }
+
+        public Settings priority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Settings shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        public Settings replicas(int replicas) {
+            this.replicas = replicas;
+            return this;
+        }
+
+        /**
+         * @param refreshInterval the refresh interval, or null to disable periodic refresh
+         */
+        public Settings refreshInterval(Duration refreshInterval) {
+            this.refreshInterval = refreshInterval;
+            return this;
+        }
+
+        /**
+         * @param indexMeasurements false to keep only doc values for measurements, which is cheaper to write and
+         *                          enough for aggregations and sorting, but not for filtering on measurement values
+         */
+        public Settings indexMeasurements(boolean indexMeasurements) {
+            this.indexMeasurements = indexMeasurements;
+            return this;
+        }
+
+    }
+
+}
@@ -0,0 +1,486 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.api.IngestResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only write-ahead journal of index requests on local disk, decoupling ingest latency from Elasticsearch.
+ * Batches are appended to memory-mapped segment files and acknowledged once forced to disk. A sync thread forces
+ * everything appended since its last sync in one go, so concurrent appenders share the cost of a sync (group commit).
+ * A replayer thread drains the journal to Elasticsearch through the {@link BulkWriter} in the order the batches were
+ * appended, and records how far it has come in a checkpoint file, so that replay resumes from there after a restart.
+ * Segments are deleted when they have been replayed.
+ * <p>
+ * A record is laid out as a length, a CRC32 checksum and the batch. A length of zero marks the end of the records of a
+ * segment, and a record with a bad checksum (a torn write) marks the end of the journal on recovery.
+ */
+public class Journal implements Closeable, MeterBinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(Journal.class);
+    private static final int recordHeaderSize = 8;
+    private static final String segmentSuffix = ".journal";
+    private static final String checkpointFileName = "checkpoint";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final BulkWriter bulkWriter;
+    private final Duration replayRetryBackoff;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    private final LongAdder appendedPoints = new LongAdder();
+    private final LongAdder replayedPoints = new LongAdder();
+    private final LongAdder failedPoints = new LongAdder();
+    private final Thread syncer;
+    private final Thread replayer;
+    private Segment writeSegment;
+    private long appendedRecords;
+    private long syncedRecords;
+    private Position durable;
+    private volatile Position replayed;
+    private volatile boolean closed;
+
+    public Journal(Path directory, int segmentSize, BulkWriter bulkWriter, Duration replayRetryBackoff) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.bulkWriter = bulkWriter;
+        this.replayRetryBackoff = replayRetryBackoff;
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open journal in " + directory, e);
+        }
+        this.syncer = new Thread(this::sync, "journal-sync");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+        this.replayer = new Thread(this::replay, "journal-replay");
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+    }
+
+    /**
+     * Appends the requests as one batch, and waits until the batch has been forced to disk.
+     */
+    public void append(List<IndexRequest> requests) {
+        if (requests.isEmpty())
+            return;
+        byte[] batch = encode(requests);
+        if (recordHeaderSize + batch.length + Integer.BYTES > segmentSize)
+            throw new IllegalArgumentException("Batch of " + batch.length + " bytes does not fit in a journal segment");
+        CRC32 crc = new CRC32();
+        crc.update(batch);
+        lock.lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("Journal is closed");
+            if (writeSegment.buffer.position() + recordHeaderSize + batch.length + Integer.BYTES > segmentSize)
+                roll();
+            writeSegment.buffer.putInt(batch.length).putInt((int) crc.getValue()).put(batch);
+            long record = ++appendedRecords;
+            appended.signal();
+            while (syncedRecords < record)
+                synced.awaitUninterruptibly();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to append to journal", e);
+        } finally {
+            lock.unlock();
+        }
+        appendedPoints.add(requests.size());
+    }
+
+    /**
+     * Forces everything appended since the last sync, waking all appenders waiting for it.
+     */
+    private void sync() {
+        while (true) {
+            Segment segment;
+            int end;
+            long records;
+            lock.lock();
+            try {
+                while (syncedRecords == appendedRecords && !closed)
+                    appended.awaitUninterruptibly();
+                if (syncedRecords == appendedRecords)
+                    return;
+                segment = writeSegment;
+                end = segment.buffer.position();
+                records = appendedRecords;
+            } finally {
+                lock.unlock();
+            }
+            segment.buffer.force();
+            lock.lock();
+            try {
+                syncedRecords = records;
+                durable = new Position(segment.sequence, end);
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, forcing the current one first, as the sync thread only forces the newest segment.
+     */
+    private void roll() throws IOException {
+        writeSegment.buffer.force();
+        writeSegment.close();
+        writeSegment = Segment.open(segmentPath(writeSegment.sequence + 1), writeSegment.sequence + 1, segmentSize, true);
+    }
+
+    private void replay() {
+        Segment readSegment = null;
+        try {
+            Position position = replayed;
+            while (!closed) {
+                if (readSegment == null || readSegment.sequence != position.segment) {
+                    if (readSegment != null) {
+                        readSegment.close();
+                        Files.deleteIfExists(segmentPath(readSegment.sequence));
+                    }
+                    readSegment = Segment.open(segmentPath(position.segment), position.segment, segmentSize, false);
+                }
+                Position limit = awaitDurable(position);
+                if (limit == null)
+                    continue;
+                BulkChunk chunk = new BulkChunk();
+                Position next = position;
+                while (next.segment == position.segment && next.compareTo(limit) < 0 && !bulkWriter.isFull(chunk.size(), chunk.bytes()))
+                    next = read(readSegment, next, limit, chunk);
+                if (chunk.size() > 0)
+                    submit(chunk);
+                if (next.segment != position.segment || chunk.size() > 0) {
+                    checkpoint(next);
+                    replayed = next;
+                    position = next;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Journal replay stopped, remaining batches are replayed on next start", e);
+        } finally {
+            if (readSegment != null)
+                readSegment.close();
+        }
+    }
+
+    /**
+     * @return durable position beyond the given position, or null if there was none within a second
+     */
+    private Position awaitDurable(Position position) throws InterruptedException {
+        lock.lock();
+        try {
+            if (durable.compareTo(position) <= 0)
+                synced.await(1, TimeUnit.SECONDS);
+            return durable.compareTo(position) > 0 ? durable : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the requests of the record at the given position to the chunk.
+     *
+     * @return position of the next record, which is the start of the next segment after the last record of a segment
+     */
+    private Position read(Segment segment, Position position, Position limit, BulkChunk chunk) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(position.offset);
+        int length = buffer.remaining() >= recordHeaderSize ? buffer.getInt() : 0;
+        if (length == 0)
+            return new Position(position.segment + 1, 0);
+        buffer.getInt(); // Checksum is verified on recovery
+        ByteBuffer batch = buffer.slice();
+        batch.limit(length);
+        decode(batch).forEach(chunk::add);
+        Position next = new Position(position.segment, position.offset + recordHeaderSize + length);
+        return next.compareTo(limit) > 0 ? limit : next;
+    }
+
+    /**
+     * Submits the chunk to Elasticsearch, retrying for as long as the bulk requests themselves fail. Items rejected by
+     * Elasticsearch are not retried beyond what the bulk writer does, as resubmitting them will not help.
+     */
+    private void submit(BulkChunk chunk) throws InterruptedException {
+        while (true) {
+            try {
+                IngestResponse.Status[] statuses = chunk.statuses(bulkWriter.submit(chunk.requests()).join());
+                long failed = 0;
+                for (IngestResponse.Status status : statuses)
+                    if (status == IngestResponse.Status.Failed)
+                        failed++;
+                if (failed > 0)
+                    logger.warn("{} of {} journaled points failed to be indexed", failed, statuses.length);
+                failedPoints.add(failed);
+                replayedPoints.add(statuses.length - failed);
+                return;
+            } catch (RuntimeException e) {
+                if (closed)
+                    throw new InterruptedException("Journal closed");
+                logger.warn("Failed to replay journaled points, retrying in {}", replayRetryBackoff, e);
+                Thread.sleep(replayRetryBackoff.toMillis());
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(segmentSuffix))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - segmentSuffix.length())))
+                    .sorted()
+                    .forEach(sequences::add);
+        }
+        Position checkpoint = readCheckpoint();
+        if (checkpoint == null)
+            checkpoint = new Position(sequences.isEmpty() ? 0 : sequences.get(0), 0);
+        for (long sequence : sequences)
+            if (sequence < checkpoint.segment)
+                Files.delete(segmentPath(sequence));
+        long last = sequences.isEmpty() ? checkpoint.segment : Math.max(checkpoint.segment, sequences.get(sequences.size() - 1));
+        writeSegment = Segment.open(segmentPath(last), last, segmentSize, true);
+        int end = recoverEnd(writeSegment.buffer);
+        writeSegment.buffer.position(end);
+        if (end + Integer.BYTES <= segmentSize && writeSegment.buffer.getInt(end) != 0) {
+            logger.warn("Discarding torn write at end of journal segment {} offset {}", last, end);
+            for (int i = end; i < segmentSize; i++)
+                writeSegment.buffer.put(i, (byte) 0);
+            writeSegment.buffer.force();
+        }
+        durable = new Position(last, end);
+        replayed = checkpoint.compareTo(durable) > 0 ? durable : checkpoint;
+        if (durable.compareTo(replayed) > 0)
+            logger.info("Journal has points left to replay from segment {} offset {}", replayed.segment, replayed.offset);
+    }
+
+    /**
+     * @return offset after the last complete record, discarding anything after a torn write
+     */
+    private static int recoverEnd(MappedByteBuffer buffer) {
+        ByteBuffer records = buffer.duplicate();
+        records.position(0);
+        while (records.remaining() >= recordHeaderSize) {
+            int start = records.position();
+            int length = records.getInt();
+            int checksum = records.getInt();
+            if (length <= 0 || length > records.remaining())
+                return start;
+            byte[] batch = new byte[length];
+            records.get(batch);
+            CRC32 crc = new CRC32();
+            crc.update(batch);
+            if ((int) crc.getValue() != checksum)
+                return start;
+        }
+        return records.position();
+    }
+
+    private Position readCheckpoint() throws IOException {
+        Path path = directory.resolve(checkpointFileName);
+        if (!Files.exists(path))
+            return null;
+        ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(path));
+        return new Position(checkpoint.getLong(), checkpoint.getInt());
+    }
+
+    /**
+     * Replaces the checkpoint atomically, so that a crash leaves either the old or the new one.
+     */
+    private void checkpoint(Position position) throws IOException {
+        Path temporary = directory.resolve(checkpointFileName + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(position.segment).putInt(position.offset).flip());
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(checkpointFileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%020d%s", sequence, segmentSuffix));
+    }
+
+    private static byte[] encode(List<IndexRequest> requests) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(requests.size());
+            for (IndexRequest request : requests) {
+                writeString(out, request.index());
+                writeString(out, request.type());
+                writeString(out, request.id());
+                writeString(out, request.getContentType().name());
+                byte[] source = BytesReference.toBytes(request.source());
+                out.writeInt(source.length);
+                out.write(source);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to encode batch for journal", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<IndexRequest> decode(ByteBuffer batch) {
+        int count = batch.getInt();
+        List<IndexRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String index = readString(batch);
+            String type = readString(batch);
+            String id = readString(batch);
+            XContentType contentType = XContentType.valueOf(readString(batch));
+            byte[] source = new byte[batch.getInt()];
+            batch.get(source);
+            requests.add(new IndexRequest(index, type, id).source(source, contentType).create(false));
+        }
+        return requests;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Syncs what has been appended and stops replay. Batches not yet replayed are replayed on next start.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            syncer.join(TimeUnit.SECONDS.toMillis(30));
+            replayer.interrupt();
+            replayer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            writeSegment.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("statistics.ingest.journal.points.appended", appendedPoints, LongAdder::sum)
+                .description("Points appended to the journal")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.journal.points.replayed", replayedPoints, LongAdder::sum)
+                .description("Journaled points indexed in Elasticsearch")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.journal.points.failed", failedPoints, LongAdder::sum)
+                .description("Journaled points rejected by Elasticsearch")
+                .register(registry);
+        Gauge.builder("statistics.ingest.journal.segments", this, journal -> journal.durable().segment - journal.replayed.segment + 1)
+                .description("Journal segments not yet fully replayed")
+                .register(registry);
+    }
+
+    private Position durable() {
+        lock.lock();
+        try {
+            return durable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Position implements Comparable<Position> {
+
+        private final long segment;
+        private final int offset;
+
+        Position(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            int result = Long.compare(segment, other.segment);
+            return result != 0 ? result : Integer.compare(offset, other.offset);
+        }
+
+    }
+
+    private static class Segment {
+
+        private final long sequence;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long sequence, FileChannel channel, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, long sequence, int size, boolean writable) throws IOException {
+            FileChannel channel = writable ? FileChannel.open(path, CREATE, READ, WRITE) : FileChannel.open(path, READ);
+            return new Segment(sequence, channel, channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+
+        /**
+         * Closes the channel. The mapping itself stays valid until the buffer is garbage collected.
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close journal segment {}", sequence, e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes points as JSON documents for indexing, writing directly into a per-thread reusable buffer instead of going
+ * through an <code>XContentBuilder</code>. The quoted and escaped field names are encoded once and shared by all
+ * points with the same measurement ids and category keys, so the only allocation per point is the resulting byte
+ * array (and the timestamp string).
+ */
+public class JsonDocumentEncoder implements DocumentEncoder {
+
+    private static final int maxRetainedBufferSize = 64 * 1024;
+    private static final int maxFieldNames = 10_000;
+    private static final byte[] digitsOfLongMinValue = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
+    private final Map<String, byte[]> measurementFieldNames = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> categoryFieldNames = new ConcurrentHashMap<>();
+    private final byte[] timeFieldPrefix = fieldName(timeFieldName, true);
+
+    @Override
+    public XContentType contentType() {
+        return XContentType.JSON;
+    }
+
+    @Override
+    public byte[] encode(TimeSeriesPoint dataPoint, ZonedDateTime normalizedTimestamp) {
+        Output output = outputs.get();
+        try {
+            output.write(timeFieldPrefix);
+            output.writeString(normalizedTimestamp.toString());
+            dataPoint.getCategories().ifPresent(categories -> categories.forEach((key, value) -> {
+                output.write(categoryFieldName(key));
+                output.writeString(value);
+            }));
+            dataPoint.getMeasurements().forEach((id, value) -> {
+                output.write(measurementFieldName(id));
+                output.writeLong(value);
+            });
+            output.write('}');
+            return output.toByteArray();
+        } finally {
+            if (output.capacity() > maxRetainedBufferSize)
+                outputs.remove();
+            else
+                output.reset();
+        }
+    }
+
+    private byte[] measurementFieldName(String id) {
+        byte[] fieldName = measurementFieldNames.get(id);
+        if (fieldName != null)
+            return fieldName;
+        DocumentEncoder.validateMeasurementId(id);
+        return cache(measurementFieldNames, id, fieldName(id, false));
+    }
+
+    private byte[] categoryFieldName(String key) {
+        byte[] fieldName = categoryFieldNames.get(key);
+        if (fieldName != null)
+            return fieldName;
+        return cache(categoryFieldNames, key, fieldName("category." + key, false));
+    }
+
+    private static byte[] cache(Map<String, byte[]> fieldNames, String key, byte[] fieldName) {
+        if (fieldNames.size() >= maxFieldNames)
+            fieldNames.clear();
+        fieldNames.put(key, fieldName);
+        return fieldName;
+    }
+
+    /**
+     * @return the field name with separators, like <code>,"name":</code>
+     */
+    private static byte[] fieldName(String name, boolean first) {
+        Output output = new Output();
+        output.write(first ? '{' : ',');
+        output.writeString(name);
+        output.write(':');
+        return output.toByteArray();
+    }
+
+    private static class Output {
+
+        private byte[] buffer = new byte[512];
+        private int size;
+
+        void write(int b) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                write(digitsOfLongMinValue);
+                return;
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                buffer[size++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10)
+                digits++;
+            for (int i = size + digits - 1; i >= size; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            size += digits;
+        }
+
+        void writeString(String value) {
+            ensureCapacity(value.length() * 6 + 2); // Worst case is an escaped control character
+            buffer[size++] = '"';
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c < 0x20 || c == '"' || c == '\\')
+                        writeEscaped(c);
+                    else
+                        buffer[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[size++] = (byte) (0xc0 | c >> 6);
+                    buffer[size++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[size++] = (byte) (0xf0 | codePoint >> 18);
+                    buffer[size++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | codePoint & 0x3f);
+                } else {
+                    if (Character.isSurrogate(c))
+                        c = '\ufffd'; // Unpaired surrogate, which cannot be encoded
+                    buffer[size++] = (byte) (0xe0 | c >> 12);
+                    buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[size++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+            buffer[size++] = '"';
+        }
+
+        private void writeEscaped(char c) {
+            buffer[size++] = '\\';
+            switch (c) {
+                case '"': buffer[size++] = '"'; break;
+                case '\\': buffer[size++] = '\\'; break;
+                case '\n': buffer[size++] = 'n'; break;
+                case '\r': buffer[size++] = 'r'; break;
+                case '\t': buffer[size++] = 't'; break;
+                case '\b': buffer[size++] = 'b'; break;
+                case '\f': buffer[size++] = 'f'; break;
+                default:
+                    buffer[size++] = 'u';
+                    buffer[size++] = '0';
+                    buffer[size++] = '0';
+                    buffer[size++] = hex[c >> 4];
+                    buffer[size++] = hex[c & 0xf];
+            }
+        }
+
+        private void ensureCapacity(int additional) {
+            if (size + additional > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+
+        int capacity() {
+            return buffer.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,184 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, least-recently-used cache of the timestamp of the last point per series, loaded from Elasticsearch on a
+ * miss and kept up to date by successful ingests. As points are never removed, the last timestamp only moves forward,
+ * so loads and ingests racing each other are resolved by keeping the latest timestamp. Entries expire some time after
+ * they were loaded, which bounds how long points ingested through other instances of the API go unnoticed. Empty
+ * series are not cached, so that asking for series that do not exist cannot evict the ones that do.
+ */
+public class LastPointCache implements MeterBinder {
+
+    private final Map<TimeSeriesDefinition, Entry> entries;
+    private final long timeToLiveNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public LastPointCache(int maxSize, Duration timeToLive) {
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.entries = new LinkedHashMap<TimeSeriesDefinition, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TimeSeriesDefinition, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param loader searches Elasticsearch for the last point of the series
+     * @return the last point of the series, holding only its timestamp, or null if the series is empty
+     */
+    public CompletableFuture<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition, Supplier<CompletableFuture<TimeSeriesPoint>> loader) {
+        Entry entry = cached(seriesDefinition);
+        if (entry != null)
+            return CompletableFuture.completedFuture(point(entry.timestamp));
+        long loaded = System.nanoTime();
+        return loader.get().thenApply(point -> loaded(seriesDefinition, point, loaded));
+    }
+
+    /**
+     * Like {@link #last(TimeSeriesDefinition, Supplier)} for several series, where the series not in the cache are
+     * loaded together.
+     *
+     * @param loader searches Elasticsearch for the last point of each of the given series
+     * @return the last point of each series, in the order given, holding null for empty series
+     */
+    public CompletableFuture<Map<TimeSeriesDefinition, TimeSeriesPoint>> last(
+            List<TimeSeriesDefinition> seriesDefinitions,
+            Function<List<TimeSeriesDefinition>, CompletableFuture<Map<TimeSeriesDefinition, TimeSeriesPoint>>> loader
+    ) {
+        Map<TimeSeriesDefinition, TimeSeriesPoint> result = new LinkedHashMap<>();
+        List<TimeSeriesDefinition> missing = new ArrayList<>();
+        for (TimeSeriesDefinition seriesDefinition : seriesDefinitions) {
+            Entry entry = cached(seriesDefinition);
+            if (entry == null)
+                missing.add(seriesDefinition);
+            result.put(seriesDefinition, entry == null ? null : point(entry.timestamp));
+        }
+        if (missing.isEmpty())
+            return CompletableFuture.completedFuture(result);
+        long loaded = System.nanoTime();
+        return loader.apply(missing).thenApply(points -> {
+            for (TimeSeriesDefinition seriesDefinition : missing)
+                result.put(seriesDefinition, loaded(seriesDefinition, points.get(seriesDefinition), loaded));
+            return result;
+        });
+    }
+
+    private Entry cached(TimeSeriesDefinition seriesDefinition) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(seriesDefinition);
+            if (entry != null && System.nanoTime() - entry.loaded > timeToLiveNanos) {
+                entries.remove(seriesDefinition);
+                entry = null;
+            }
+        }
+        (entry != null ? hits : misses).increment();
+        return entry;
+    }
+
+    /**
+     * @param loaded when loading started, which the time to live of the entry counts from
+     * @return the latest of the point loaded and any point already cached by a concurrent load
+     */
+    private TimeSeriesPoint loaded(TimeSeriesDefinition seriesDefinition, TimeSeriesPoint point, long loaded) {
+        ZonedDateTime timestamp = point == null ? null : point.getTimestamp().withZoneSameInstant(ZoneOffset.UTC);
+        synchronized (entries) {
+            Entry current = entries.get(seriesDefinition);
+            if (current != null)
+                timestamp = latest(current.timestamp, timestamp);
+            if (timestamp != null)
+                entries.put(seriesDefinition, new Entry(timestamp, loaded));
+        }
+        return point(timestamp);
+    }
+
+    /**
+     * Records that a point has been stored. Series not in the cache are left to be loaded when asked for, as the
+     * point may not be the last one.
+     *
+     * @param normalizedTimestamp timestamp already normalized with {@link Timestamp#normalize}
+     */
+    public void stored(TimeSeriesDefinition seriesDefinition, ZonedDateTime normalizedTimestamp) {
+        synchronized (entries) {
+            Entry current = entries.get(seriesDefinition);
+            if (current != null)
+                entries.put(seriesDefinition, new Entry(latest(current.timestamp, normalizedTimestamp.withZoneSameInstant(ZoneOffset.UTC)), current.loaded));
+        }
+    }
+
+    /**
+     * Forgets all series, for when points have been removed from Elasticsearch.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static ZonedDateTime latest(ZonedDateTime a, ZonedDateTime b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return b.isAfter(a) ? b : a;
+    }
+
+    private static TimeSeriesPoint point(ZonedDateTime timestamp) {
+        return timestamp == null ? null : TimeSeriesPoint.builder().timestamp(timestamp).build();
+    }
+
+    private int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("statistics.ingest.last.cache", hits, LongAdder::sum)
+                .tag("result", "hit")
+                .description("Lookups of last point found in the cache")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.last.cache", misses, LongAdder::sum)
+                .tag("result", "miss")
+                .description("Lookups of last point not found in the cache")
+                .register(registry);
+        Gauge.builder("statistics.ingest.last.cache.size", this, LastPointCache::size)
+                .description("Number of series with cached last point")
+                .register(registry);
+    }
+
+    private static class Entry {
+
+        private final ZonedDateTime timestamp;
+        private final long loaded;
+
+        Entry(ZonedDateTime timestamp, long loaded) {
+            this.timestamp = timestamp;
+            this.loaded = loaded;
+        }
+
+    }
+
+}
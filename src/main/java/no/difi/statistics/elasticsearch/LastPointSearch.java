@@ -0,0 +1,264 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.metrics.Max;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.elasticsearch.search.aggregations.AggregationBuilders.max;
+import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
+
+/**
+ * Searches Elasticsearch for the last point of a series. The indices of a series are probed from the newest to the
+ * oldest, a few at a time, stopping at the first group holding any points, so the cost of a search depends on how far
+ * back the last point is rather than on how old the series is. Index names of a series share a prefix and end with
+ * the zero-padded date they start at, so their reverse lexical order is newest first.
+ */
+public class LastPointSearch implements MeterBinder {
+
+    private static final String timeFieldName = "timestamp";
+
+    private final Transport transport;
+    private final int groupSize;
+    private final int maxSearchesPerRequest;
+    private final IndexCatalog indexCatalog;
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder probedIndices = new LongAdder();
+
+    /**
+     * @param groupSize number of indices to probe per search
+     * @param maxSearchesPerRequest number of searches to send per multi-search request
+     * @param indexCatalog catalog of existing indices to narrow the searches down to, or null to search all indices
+     *                     the series could have
+     */
+    public LastPointSearch(RestHighLevelClient client, int groupSize, int maxSearchesPerRequest, IndexCatalog indexCatalog) {
+        this(new Transport() {
+            @Override
+            public void searchAsync(SearchRequest request, ActionListener<SearchResponse> listener) {
+                client.searchAsync(request, RequestOptions.DEFAULT, listener);
+            }
+
+            @Override
+            public void msearchAsync(MultiSearchRequest request, ActionListener<MultiSearchResponse> listener) {
+                client.msearchAsync(request, RequestOptions.DEFAULT, listener);
+            }
+        }, groupSize, maxSearchesPerRequest, indexCatalog);
+    }
+
+    LastPointSearch(Transport transport, int groupSize, int maxSearchesPerRequest, IndexCatalog indexCatalog) {
+        this.transport = transport;
+        this.groupSize = groupSize;
+        this.maxSearchesPerRequest = maxSearchesPerRequest;
+        this.indexCatalog = indexCatalog;
+    }
+
+    /**
+     * @return the last point of the series, holding only its timestamp, or null if the series is empty
+     */
+    public CompletableFuture<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition) {
+        searches.increment();
+        CompletableFuture<TimeSeriesPoint> result = new CompletableFuture<>();
+        probe(indexNames(seriesDefinition), 0, result);
+        return result;
+    }
+
+    /**
+     * Searches for the last point of several series at once. The newest indices of all series are probed first, with
+     * the searches sent together in multi-search requests, and then the next indices of the series not found yet, and
+     * so on until all series are found or have no more indices.
+     *
+     * @return the last point of each series, holding only its timestamp, or null for empty series
+     */
+    public CompletableFuture<Map<TimeSeriesDefinition, TimeSeriesPoint>> last(List<TimeSeriesDefinition> seriesDefinitions) {
+        List<Probe> probes = new ArrayList<>(seriesDefinitions.size());
+        for (TimeSeriesDefinition seriesDefinition : seriesDefinitions)
+            probes.add(new Probe(seriesDefinition, indexNames(seriesDefinition)));
+        searches.add(probes.size());
+        return probe(probes).thenApply(ignored -> {
+            Map<TimeSeriesDefinition, TimeSeriesPoint> result = new HashMap<>();
+            probes.forEach(probe -> result.put(probe.seriesDefinition, probe.point));
+            return result;
+        });
+    }
+
+    private CompletableFuture<Void> probe(List<Probe> probes) {
+        List<Probe> remaining = probes.stream().filter(probe -> !probe.isDone()).toList();
+        if (remaining.isEmpty())
+            return CompletableFuture.completedFuture(null);
+        List<CompletableFuture<Void>> requests = new ArrayList<>();
+        for (int i = 0; i < remaining.size(); i += maxSearchesPerRequest)
+            requests.add(multiSearch(remaining.subList(i, Math.min(i + maxSearchesPerRequest, remaining.size()))));
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).thenCompose(ignored -> probe(remaining));
+    }
+
+    private CompletableFuture<Void> multiSearch(List<Probe> probes) {
+        MultiSearchRequest request = new MultiSearchRequest();
+        for (Probe probe : probes) {
+            List<String> group = probe.nextGroup();
+            probedIndices.add(group.size());
+            request.add(request(group));
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        transport.msearchAsync(request, new ActionListener<MultiSearchResponse>() {
+            @Override
+            public void onResponse(MultiSearchResponse response) {
+                try {
+                    MultiSearchResponse.Item[] items = response.getResponses();
+                    for (int i = 0; i < items.length; i++) {
+                        if (items[i].isFailure())
+                            throw new RuntimeException("Failed to search for last point of " + probes.get(i).seriesDefinition, items[i].getFailure());
+                        probes.get(i).point = pointFromLastAggregation(items[i].getResponse());
+                    }
+                    result.complete(null);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(new RuntimeException("Failed to search", e));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The newest index of the series is kept even if the catalog does not know of it, as it may have been created
+     * through another instance since the catalog was loaded, and would otherwise hide the points in it until the next
+     * load. Searches ignore indices that do not exist.
+     */
+    private List<String> indexNames(TimeSeriesDefinition seriesDefinition) {
+        List<String> resolved = IndexNameResolver.resolveIndexName().seriesDefinition(seriesDefinition).list();
+        List<String> indexNames = indexCatalog == null ? new ArrayList<>(resolved) : indexCatalog.existing(resolved);
+        indexNames.sort(Comparator.reverseOrder());
+        if (!resolved.isEmpty()) {
+            String newest = Collections.max(resolved);
+            if (indexNames.isEmpty() || !indexNames.get(0).equals(newest))
+                indexNames.add(0, newest);
+        }
+        return indexNames;
+    }
+
+    private void probe(List<String> indexNames, int from, CompletableFuture<TimeSeriesPoint> result) {
+        if (from >= indexNames.size()) {
+            result.complete(null);
+            return;
+        }
+        List<String> group = indexNames.subList(from, Math.min(from + groupSize, indexNames.size()));
+        probedIndices.add(group.size());
+        transport.searchAsync(request(group), new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                TimeSeriesPoint point;
+                try {
+                    point = pointFromLastAggregation(response);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (point != null)
+                    result.complete(point);
+                else
+                    probe(indexNames, from + group.size(), result);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(new RuntimeException("Failed to search", e));
+            }
+        });
+    }
+
+    private static SearchRequest request(List<String> indexNames) {
+        return new SearchRequest(indexNames.toArray(new String[0]))
+                .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
+                .source(searchSource()
+                        .aggregation(max("last").field(timeFieldName))
+                        .size(0) // We are after aggregation and not the search hits
+                );
+    }
+
+    private static TimeSeriesPoint pointFromLastAggregation(SearchResponse response) {
+        if (response.getAggregations() == null)
+            return null;
+        Max last = response.getAggregations().get("last");
+        if (last == null)
+            throw new RuntimeException("No last aggregation in result");
+        if (Double.isInfinite(last.getValue()))
+            return null; // No points in the indices
+        return TimeSeriesPoint.builder()
+                .timestamp(Instant.ofEpochMilli((long) last.getValue()).atZone(ZoneOffset.UTC))
+                .build();
+    }
+
+    /**
+     * Sends searches to Elasticsearch.
+     */
+    interface Transport {
+
+        void searchAsync(SearchRequest request, ActionListener<SearchResponse> listener);
+
+        void msearchAsync(MultiSearchRequest request, ActionListener<MultiSearchResponse> listener);
+
+    }
+
+    /**
+     * The search for the last point of one series, as part of searching for several series.
+     */
+    private class Probe {
+
+        private final TimeSeriesDefinition seriesDefinition;
+        private final List<String> indexNames;
+        private int next;
+        private TimeSeriesPoint point;
+
+        Probe(TimeSeriesDefinition seriesDefinition, List<String> indexNames) {
+            this.seriesDefinition = seriesDefinition;
+            this.indexNames = indexNames;
+        }
+
+        List<String> nextGroup() {
+            List<String> group = indexNames.subList(next, Math.min(next + groupSize, indexNames.size()));
+            next += group.size();
+            return group;
+        }
+
+        boolean isDone() {
+            return point != null || next >= indexNames.size();
+        }
+
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("statistics.ingest.last.searches", searches, LongAdder::sum)
+                .description("Searches in Elasticsearch for the last point of a series")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.last.probed.indices", probedIndices, LongAdder::sum)
+                .description("Indices probed by searches for the last point of a series")
+                .register(registry);
+    }
+
+}
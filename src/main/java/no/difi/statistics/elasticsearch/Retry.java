@@ -0,0 +1,54 @@
+package no.difi.statistics.elasticsearch;
+
+import org.elasticsearch.rest.RestStatus;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for bulk items rejected by Elasticsearch because of back-pressure. The backoff grows exponentially
+ * from the initial backoff, capped by the maximum backoff, with equal jitter to spread out retries from concurrent
+ * bulk requests.
+ */
+public class Retry {
+
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Duration timeout;
+
+    /**
+     * @param maxAttempts maximum number of attempts for an item, including the first
+     * @param timeout time from submission after which an item is no longer retried
+     */
+    public Retry(int maxAttempts, Duration initialBackoff, Duration maxBackoff, Duration timeout) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.timeout = timeout;
+    }
+
+    static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    int maxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return deadline for retrying items submitted now, as a {@link System#nanoTime()} value
+     */
+    long deadline() {
+        return System.nanoTime() + timeout.toNanos();
+    }
+
+    /**
+     * @param attempt zero-based number of the attempt that failed
+     */
+    Duration backoff(int attempt) {
+        long ceiling = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() << Math.min(attempt, 20));
+        return Duration.ofMillis(ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1));
+    }
+
+}
@@ -0,0 +1,460 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maintains hour, day, month and year series summed from the points ingested to minute series, so that producers only
+ * have to upload minute series. Points are summed per combination of categories. The rollups of a minute series are
+ * written to series named like it with a suffix, so that they never overwrite points uploaded to the hour, day, month
+ * or year series of the same name.
+ * <p>
+ * A rollup point is not incremented by the points added to it, as a point ingested again, or updated, would then be
+ * counted twice. Instead, every rollup point has a state document in a separate index holding the measurements of each
+ * point it is summed from, keyed by their timestamp: minute points for an hour, hour points for a day, and so on.
+ * Points stored are collected in memory, and flushed periodically as one scripted upsert per rollup point, replacing
+ * its parts and returning the sums of all of them. The sums are written as the rollup point, and passed on as a part
+ * of the next coarser rollup point. As the state is kept in Elasticsearch, rollups survive restarts and are shared by
+ * all instances of the API, and rollup points are written with the version of their state document, so that an older
+ * sum never replaces a newer one. For the same reason, sums passed on as parts carry the version of the state document
+ * they were read from, and the script only replaces a part with one of a newer version, as the flushes of different
+ * instances may update the coarser rollup point in another order than the finer one.
+ */
+public class Rollups implements MeterBinder, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Rollups.class);
+    private static final String partsFieldName = "parts";
+    private static final String versionsFieldName = "versions";
+    private static final String sumsFieldName = "sums";
+    private static final String script =
+            "if (ctx._source." + partsFieldName + " == null) { ctx._source." + partsFieldName + " = new HashMap(); }" +
+            "if (ctx._source." + versionsFieldName + " == null) { ctx._source." + versionsFieldName + " = new HashMap(); }" +
+            "for (def part : params." + partsFieldName + ".entrySet()) {" +
+            "  def version = params." + versionsFieldName + ".get(part.getKey());" +
+            "  def stored = ctx._source." + versionsFieldName + ".get(part.getKey());" +
+            "  if (version == null || stored == null || ((Number) version).longValue() > ((Number) stored).longValue()) {" +
+            "    ctx._source." + partsFieldName + ".put(part.getKey(), part.getValue());" +
+            "    if (version != null) { ctx._source." + versionsFieldName + ".put(part.getKey(), version); }" +
+            "  }" +
+            "}" +
+            "Map sums = new HashMap();" +
+            "for (def part : ctx._source." + partsFieldName + ".values()) {" +
+            "  for (def measurement : part.entrySet()) {" +
+            "    long value = ((Number) measurement.getValue()).longValue();" +
+            "    def sum = sums.get(measurement.getKey());" +
+            "    sums.put(measurement.getKey(), sum == null ? value : ((Number) sum).longValue() + value);" +
+            "  }" +
+            "}" +
+            "ctx._source." + sumsFieldName + " = sums;";
+
+    private final RestHighLevelClient client;
+    private final Transport transport;
+    private final BulkWriter bulkWriter;
+    private final IndexNameCache indexNameCache;
+    private final DocumentEncoder documentEncoder;
+    private final LastPointCache lastPointCache;
+    private final IndexCatalog indexCatalog;
+    private final String stateIndex;
+    private final String seriesSuffix;
+    private final int maxPending;
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean stateIndexCreated;
+    private Map<Bucket, Map<String, Part>> pending = new HashMap<>(); // Guarded by this
+    private final LongAdder points = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param indexCatalog catalog to record indices created by rollups in, or null
+     * @param stateIndex name of the index to keep the state of the rollups in
+     * @param seriesSuffix suffix added to the name of a minute series to name the series of its rollups
+     * @param flushInterval interval between flushes of the points stored
+     * @param maxPending number of rollup points with pending parts to flush early at
+     */
+    public Rollups(
+            RestHighLevelClient client,
+            BulkWriter bulkWriter,
+            IndexNameCache indexNameCache,
+            DocumentEncoder documentEncoder,
+            LastPointCache lastPointCache,
+            IndexCatalog indexCatalog,
+            String stateIndex,
+            String seriesSuffix,
+            Duration flushInterval,
+            int maxPending) {
+        this(client, request -> client.bulk(request, RequestOptions.DEFAULT), bulkWriter, indexNameCache, documentEncoder, lastPointCache,
+                indexCatalog, stateIndex, seriesSuffix, flushInterval, maxPending);
+    }
+
+    Rollups(
+            RestHighLevelClient client,
+            Transport transport,
+            BulkWriter bulkWriter,
+            IndexNameCache indexNameCache,
+            DocumentEncoder documentEncoder,
+            LastPointCache lastPointCache,
+            IndexCatalog indexCatalog,
+            String stateIndex,
+            String seriesSuffix,
+            Duration flushInterval,
+            int maxPending) {
+        this.client = client;
+        this.transport = transport;
+        this.bulkWriter = bulkWriter;
+        this.indexNameCache = indexNameCache;
+        this.documentEncoder = documentEncoder;
+        this.lastPointCache = lastPointCache;
+        this.indexCatalog = indexCatalog;
+        this.stateIndex = stateIndex;
+        this.seriesSuffix = seriesSuffix;
+        this.maxPending = maxPending;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rollups");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds points stored to the series to the rollups of it. Points of series other than minute series are ignored.
+     */
+    public void stored(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints) {
+        if (seriesDefinition.getDistance() != MeasurementDistance.minutes || dataPoints.isEmpty())
+            return;
+        TimeSeriesDefinition hourSeries = TimeSeriesDefinition.builder()
+                .name(seriesDefinition.getName() + seriesSuffix)
+                .hours()
+                .owner(seriesDefinition.getOwner());
+        int size;
+        synchronized (this) {
+            for (TimeSeriesPoint point : dataPoints) {
+                ZonedDateTime timestamp = Timestamp.normalize(point.getTimestamp(), MeasurementDistance.minutes);
+                Bucket bucket = new Bucket(
+                        hourSeries,
+                        point.getCategories().orElse(Map.of()),
+                        Timestamp.normalize(timestamp, MeasurementDistance.hours)
+                );
+                pending.computeIfAbsent(bucket, b -> new HashMap<>()).put(timestamp.toString(), new Part(point.getMeasurements(), Part.unversioned));
+            }
+            size = pending.size();
+        }
+        points.add(dataPoints.size());
+        if (size >= maxPending && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                // Closing, and the points are flushed by close()
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        Map<Bucket, Map<String, Part>> buckets;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;
+            buckets = pending;
+            pending = new HashMap<>();
+        }
+        try {
+            createStateIndex();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to create rollup state index {}, retrying on next flush", stateIndex, e);
+            buckets.forEach(this::retry);
+            return;
+        }
+        // Each round updates one rollup point per bucket, and yields the parts of the coarser rollup points
+        while (!buckets.isEmpty())
+            buckets = update(buckets);
+    }
+
+    /**
+     * Creates the state index, with no mapping of the fields of its documents, which are only ever read by the
+     * update script.
+     */
+    private void createStateIndex() throws IOException {
+        if (stateIndexCreated)
+            return;
+        Request request = new Request("PUT", "/" + stateIndex);
+        request.setJsonEntity("{\"settings\":{\"number_of_shards\":1},\"mappings\":{\"enabled\":false}}");
+        try {
+            client.getLowLevelClient().performRequest(request);
+        } catch (ResponseException e) {
+            if (!e.getMessage().contains("resource_already_exists_exception"))
+                throw e;
+        }
+        stateIndexCreated = true;
+    }
+
+    private Map<Bucket, Map<String, Part>> update(Map<Bucket, Map<String, Part>> buckets) {
+        List<Bucket> order = new ArrayList<>(buckets.keySet());
+        BulkRequest request = new BulkRequest();
+        for (Bucket bucket : order)
+            request.add(stateUpdate(bucket, buckets.get(bucket)));
+        BulkResponse response;
+        try {
+            response = transport.bulk(request);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to update {} rollup points, retrying on next flush", order.size(), e);
+            buckets.forEach(this::retry);
+            return Map.of();
+        }
+        updates.add(order.size());
+        Map<Bucket, Map<String, Part>> coarser = new HashMap<>();
+        List<Bucket> written = new ArrayList<>(order.size());
+        List<IndexRequest> documents = new ArrayList<>(order.size());
+        BulkItemResponse[] items = response.getItems();
+        for (int i = 0; i < items.length; i++) {
+            Bucket bucket = order.get(i);
+            UpdateResponse update = items[i].getResponse();
+            if (items[i].isFailed() || update.getGetResult() == null) {
+                logger.warn("Failed to update rollup point {}, retrying on next flush: {}", bucket, items[i].getFailureMessage());
+                retry(bucket, buckets.get(bucket));
+                continue;
+            }
+            Map<String, Long> sums = sums(update.getGetResult().sourceAsMap());
+            written.add(bucket);
+            documents.add(document(bucket, sums, update.getVersion()));
+            if (bucket.seriesDefinition.getDistance() != MeasurementDistance.years) {
+                TimeSeriesDefinition coarserSeries = coarser(bucket.seriesDefinition);
+                Bucket coarserBucket = new Bucket(
+                        coarserSeries,
+                        bucket.categories,
+                        Timestamp.normalize(bucket.timestamp, coarserSeries.getDistance())
+                );
+                coarser.computeIfAbsent(coarserBucket, b -> new HashMap<>()).put(bucket.timestamp.toString(), new Part(sums, update.getVersion()));
+            }
+        }
+        write(written, documents);
+        return coarser;
+    }
+
+    private UpdateRequest stateUpdate(Bucket bucket, Map<String, Part> parts) {
+        Map<String, Map<String, Long>> measurements = new HashMap<>();
+        Map<String, Long> versions = new HashMap<>();
+        parts.forEach((timestamp, part) -> {
+            measurements.put(timestamp, part.measurements);
+            if (part.version != Part.unversioned)
+                versions.put(timestamp, part.version);
+        });
+        return new UpdateRequest(stateIndex, indexNameCache.indexName(bucket.seriesDefinition, bucket.timestamp) + '/' + bucket.id())
+                .script(new Script(ScriptType.INLINE, "painless", script, Map.<String, Object>of(partsFieldName, measurements, versionsFieldName, versions)))
+                .scriptedUpsert(true)
+                .upsert(Map.of())
+                .retryOnConflict(5)
+                .fetchSource(new FetchSourceContext(true, new String[]{sumsFieldName}, null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> sums(Map<String, Object> source) {
+        Map<String, Long> sums = new HashMap<>();
+        ((Map<String, Object>) source.get(sumsFieldName)).forEach((id, value) -> sums.put(id, ((Number) value).longValue()));
+        return sums;
+    }
+
+    /**
+     * The rollup point is written with the version of its state document as external version, so that a write of an
+     * older sum completing after a newer one is rejected with a conflict.
+     */
+    private IndexRequest document(Bucket bucket, Map<String, Long> sums, long version) {
+        TimeSeriesPoint point = bucket.point(sums);
+        return new IndexRequest(indexNameCache.indexName(bucket.seriesDefinition, bucket.timestamp))
+                .id(IdResolver.id(point, bucket.seriesDefinition))
+                .source(documentEncoder.encode(point, bucket.timestamp), documentEncoder.contentType())
+                .version(version)
+                .versionType(VersionType.EXTERNAL);
+    }
+
+    private void write(List<Bucket> buckets, List<IndexRequest> documents) {
+        bulkWriter.submit(documents).whenComplete((statuses, e) -> {
+            if (e != null) {
+                failures.add(documents.size());
+                logger.warn("Failed to write {} rollup points", documents.size(), e);
+                return;
+            }
+            for (int i = 0; i < statuses.length; i++) {
+                if (statuses[i] == IngestResponse.Status.Ok) {
+                    lastPointCache.stored(buckets.get(i).seriesDefinition, buckets.get(i).timestamp);
+                    if (indexCatalog != null)
+                        indexCatalog.created(documents.get(i).index());
+                } else if (statuses[i] == IngestResponse.Status.Failed) {
+                    // A conflict means a newer sum was written already
+                    failures.increment();
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts parts that failed to be flushed back, unless newer versions of them have been stored meanwhile.
+     */
+    private void retry(Bucket bucket, Map<String, Part> parts) {
+        failures.increment();
+        synchronized (this) {
+            Map<String, Part> pendingParts = pending.computeIfAbsent(bucket, b -> new HashMap<>());
+            parts.forEach((timestamp, part) -> pendingParts.merge(timestamp, part, Part::newest));
+        }
+    }
+
+    private static TimeSeriesDefinition coarser(TimeSeriesDefinition seriesDefinition) {
+        return TimeSeriesDefinition.builder()
+                .name(seriesDefinition.getName())
+                .distance(MeasurementDistance.values()[seriesDefinition.getDistance().ordinal() + 1])
+                .owner(seriesDefinition.getOwner());
+    }
+
+    private synchronized int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * Flushes the points stored before stopping.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            if (flusher.awaitTermination(30, TimeUnit.SECONDS))
+                flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("statistics.ingest.rollup.points", points, LongAdder::sum)
+                .description("Minute points added to rollups")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.rollup.updates", updates, LongAdder::sum)
+                .description("Updates of rollup points")
+                .register(registry);
+        FunctionCounter.builder("statistics.ingest.rollup.failures", failures, LongAdder::sum)
+                .description("Rollup points that failed to be updated or written")
+                .register(registry);
+        Gauge.builder("statistics.ingest.rollup.pending", this, Rollups::pendingSize)
+                .description("Rollup points with parts waiting to be flushed")
+                .register(registry);
+    }
+
+    interface Transport {
+
+        BulkResponse bulk(BulkRequest request) throws IOException;
+
+    }
+
+    /**
+     * The measurements of a point that a rollup point is summed from. A part that is itself a rollup point has the
+     * version of the state document its sums were read from.
+     */
+    private static class Part {
+
+        private static final long unversioned = -1;
+
+        private final Map<String, Long> measurements;
+        private final long version;
+
+        Part(Map<String, Long> measurements, long version) {
+            this.measurements = measurements;
+            this.version = version;
+        }
+
+        /**
+         * @return the part of the newer version, or the pending one, which was stored after the one retried, if they
+         * are not versioned
+         */
+        static Part newest(Part pending, Part retried) {
+            return retried.version > pending.version ? retried : pending;
+        }
+
+    }
+
+    /**
+     * A rollup point: the point of a series with the given categories at the given normalized timestamp.
+     */
+    private static class Bucket {
+
+        private final TimeSeriesDefinition seriesDefinition;
+        private final Map<String, String> categories;
+        private final ZonedDateTime timestamp;
+
+        Bucket(TimeSeriesDefinition seriesDefinition, Map<String, String> categories, ZonedDateTime timestamp) {
+            this.seriesDefinition = seriesDefinition;
+            this.categories = categories;
+            this.timestamp = timestamp;
+        }
+
+        TimeSeriesPoint point(Map<String, Long> measurements) {
+            return TimeSeriesPoint.builder()
+                    .timestamp(timestamp)
+                    .categories(categories)
+                    .measurements(measurements)
+                    .build();
+        }
+
+        String id() {
+            return IdResolver.id(point(Map.of()), seriesDefinition);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Bucket other)) return false;
+            return seriesDefinition.equals(other.seriesDefinition)
+                    && categories.equals(other.categories)
+                    && timestamp.equals(other.timestamp);
+        }
+
+        @Override
+        public int hashCode() {
+            return (seriesDefinition.hashCode() * 31 + categories.hashCode()) * 31 + timestamp.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return seriesDefinition + "@" + timestamp + (categories.isEmpty() ? "" : categories.toString());
+        }
+
+    }
+
+}
@@ -1,64 +1,351 @@
 package no.difi.statistics.elasticsearch.config;
 
+import no.difi.statistics.IngestMetrics;
 import no.difi.statistics.IngestService;
 import no.difi.statistics.config.BackendConfig;
+import no.difi.statistics.elasticsearch.Backfills;
+import no.difi.statistics.elasticsearch.BulkWriter;
 import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.elasticsearch.DocumentEncoder;
 import no.difi.statistics.elasticsearch.ElasticsearchIngestService;
+import no.difi.statistics.elasticsearch.IndexCatalog;
+import no.difi.statistics.elasticsearch.IndexNameCache;
+import no.difi.statistics.elasticsearch.IndexTemplate;
+import no.difi.statistics.elasticsearch.Journal;
+import no.difi.statistics.elasticsearch.LastPointCache;
+import no.difi.statistics.elasticsearch.LastPointSearch;
+import no.difi.statistics.elasticsearch.Retry;
+import no.difi.statistics.elasticsearch.Rollups;
 import org.apache.http.Header;
 import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.message.BasicHeader;
+import org.elasticsearch.client.Node;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Configuration
 @Profile({"!unittest"})
 public class ElasticsearchConfig implements BackendConfig {
 
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchConfig.class);
+    private static final int defaultPort = 9200;
+
     private final String elasticSearchHost;
     private final int elasticSearchPort;
     private final String elasticSearchApiKey;
+    private final IngestMetrics ingestMetrics;
+
+    @Value("${no.difi.statistics.elasticsearch.bulk.max-actions:1000}")
+    private int bulkMaxActions;
+    @Value("${no.difi.statistics.elasticsearch.bulk.max-bytes:5242880}")
+    private long bulkMaxBytes;
+    @Value("${no.difi.statistics.elasticsearch.bulk.linger:10ms}")
+    private Duration bulkLinger;
+    @Value("${no.difi.statistics.elasticsearch.bulk.queue-capacity:1000}")
+    private int bulkQueueCapacity;
+    @Value("${no.difi.statistics.elasticsearch.bulk.submit-timeout:30s}")
+    private Duration bulkSubmitTimeout;
+    @Value("${no.difi.statistics.elasticsearch.bulk.max-concurrent-requests:4}")
+    private int bulkMaxConcurrentRequests;
+    @Value("${no.difi.statistics.elasticsearch.bulk.retry.max-attempts:5}")
+    private int bulkRetryMaxAttempts;
+    @Value("${no.difi.statistics.elasticsearch.bulk.retry.initial-backoff:50ms}")
+    private Duration bulkRetryInitialBackoff;
+    @Value("${no.difi.statistics.elasticsearch.bulk.retry.max-backoff:5s}")
+    private Duration bulkRetryMaxBackoff;
+    @Value("${no.difi.statistics.elasticsearch.bulk.retry.timeout:30s}")
+    private Duration bulkRetryTimeout;
+    @Value("${no.difi.statistics.elasticsearch.ingest-executor.threads:4}")
+    private int ingestExecutorThreads;
+    @Value("${no.difi.statistics.elasticsearch.journal.enabled:false}")
+    private boolean journalEnabled;
+    @Value("${no.difi.statistics.elasticsearch.journal.directory:journal}")
+    private Path journalDirectory;
+    @Value("${no.difi.statistics.elasticsearch.journal.segment-size:67108864}")
+    private int journalSegmentSize;
+    @Value("${no.difi.statistics.elasticsearch.journal.replay-retry-backoff:5s}")
+    private Duration journalReplayRetryBackoff;
+    @Value("${no.difi.statistics.elasticsearch.index-name-cache.max-size:10000}")
+    private int indexNameCacheMaxSize;
+    @Value("${no.difi.statistics.elasticsearch.last-point-cache.max-size:10000}")
+    private int lastPointCacheMaxSize;
+    @Value("${no.difi.statistics.elasticsearch.last-point-cache.time-to-live:60s}")
+    private Duration lastPointCacheTimeToLive;
+    @Value("${no.difi.statistics.elasticsearch.last-point-search.group-size:4}")
+    private int lastPointSearchGroupSize;
+    @Value("${no.difi.statistics.elasticsearch.last-point-search.max-searches-per-request:100}")
+    private int lastPointSearchMaxSearchesPerRequest;
+    @Value("${no.difi.statistics.elasticsearch.index-catalog.enabled:true}")
+    private boolean indexCatalogEnabled;
+    @Value("${no.difi.statistics.elasticsearch.index-catalog.load-interval:1m}")
+    private Duration indexCatalogLoadInterval;
+    @Value("${no.difi.statistics.elasticsearch.index-template.name:statistics}")
+    private String indexTemplateName;
+    @Value("${no.difi.statistics.elasticsearch.index-template.index-patterns:*@*@*}")
+    private List<String> indexTemplateIndexPatterns;
+    @Value("${no.difi.statistics.elasticsearch.index-template.shards:1}")
+    private int indexTemplateShards;
+    @Value("${no.difi.statistics.elasticsearch.index-template.replicas:1}")
+    private int indexTemplateReplicas;
+    @Value("${no.difi.statistics.elasticsearch.index-template.refresh-interval:5s}")
+    private Duration indexTemplateRefreshInterval;
+    @Value("${no.difi.statistics.elasticsearch.index-template.index-measurements:true}")
+    private boolean indexTemplateIndexMeasurements;
+    @Value("${no.difi.statistics.elasticsearch.rollup.enabled:false}")
+    private boolean rollupEnabled;
+    @Value("${no.difi.statistics.elasticsearch.rollup.state-index:statistics-rollups}")
+    private String rollupStateIndex;
+    @Value("${no.difi.statistics.elasticsearch.rollup.flush-interval:10s}")
+    private Duration rollupFlushInterval;
+    @Value("${no.difi.statistics.elasticsearch.rollup.max-pending:100000}")
+    private int rollupMaxPending;
+    @Value("${no.difi.statistics.elasticsearch.rollup.series-suffix:-rollup}")
+    private String rollupSeriesSuffix;
+    @Value("${no.difi.statistics.elasticsearch.nodes:}")
+    private List<URI> nodes;
+    @Value("${no.difi.statistics.elasticsearch.ingest-nodes:}")
+    private List<URI> ingestNodes;
+    @Value("${no.difi.statistics.elasticsearch.scheme:}")
+    private String httpScheme;
+    @Value("${no.difi.statistics.elasticsearch.max-connections-per-route:10}")
+    private int maxConnectionsPerRoute;
+    @Value("${no.difi.statistics.elasticsearch.max-connections:30}")
+    private int maxConnections;
+    @Value("${no.difi.statistics.elasticsearch.keep-alive:60s}")
+    private Duration keepAlive;
+    @Value("${no.difi.statistics.elasticsearch.connect-timeout:1s}")
+    private Duration connectTimeout;
+    @Value("${no.difi.statistics.elasticsearch.socket-timeout:30s}")
+    private Duration socketTimeout;
+    @Value("${no.difi.statistics.elasticsearch.compression:true}")
+    private boolean compression;
+    @Value("${no.difi.statistics.elasticsearch.content-type:JSON}")
+    private XContentType contentType;
+    @Value("${spring.mvc.async.request-timeout:#{null}}")
+    private Duration asyncRequestTimeout;
 
     @Autowired
     public ElasticsearchConfig(
-            @Value("${no.difi.statistics.elasticsearch.host}") String elasticSearchHost,
-            @Value("${no.difi.statistics.elasticsearch.port}") int elasticSearchPort,
-            @Value("${no.difi.statistics.elasticsearch.apikey}") String elasticSearchApiKey) {
+            @Value("${no.difi.statistics.elasticsearch.host:}") String elasticSearchHost,
+            @Value("${no.difi.statistics.elasticsearch.port:9200}") int elasticSearchPort,
+            @Value("${no.difi.statistics.elasticsearch.apikey}") String elasticSearchApiKey,
+            IngestMetrics ingestMetrics) {
         this.elasticSearchHost = elasticSearchHost;
         this.elasticSearchPort = elasticSearchPort;
         this.elasticSearchApiKey = elasticSearchApiKey;
+        this.ingestMetrics = ingestMetrics;
     }
 
     @Bean
     public IngestService ingestService() {
-        return new ElasticsearchIngestService(elasticsearchHighLevelClient());
+        return new ElasticsearchIngestService(bulkWriter(), indexNameCache(), DocumentEncoder.forContentType(contentType),
+                journalEnabled ? journal() : null, lastPointCache(), lastPointSearch(), indexCatalogEnabled ? indexCatalog() : null, backfills(),
+                rollupEnabled ? rollups() : null, ingestMetrics, ingestExecutor());
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService ingestExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(ingestExecutorThreads, runnable -> {
+            Thread thread = new Thread(runnable, "ingest-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "no.difi.statistics.elasticsearch.journal.enabled", havingValue = "true")
+    public Journal journal() {
+        return new Journal(journalDirectory, journalSegmentSize, bulkWriter(), journalReplayRetryBackoff);
+    }
+
+    @Bean
+    public IndexNameCache indexNameCache() {
+        return new IndexNameCache(indexNameCacheMaxSize);
+    }
+
+    @Bean
+    public LastPointCache lastPointCache() {
+        return new LastPointCache(lastPointCacheMaxSize, lastPointCacheTimeToLive);
+    }
+
+    @Bean
+    public LastPointSearch lastPointSearch() {
+        return new LastPointSearch(elasticsearchHighLevelClient(), lastPointSearchGroupSize, lastPointSearchMaxSearchesPerRequest,
+                indexCatalogEnabled ? indexCatalog() : null);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "no.difi.statistics.elasticsearch.index-catalog.enabled", havingValue = "true", matchIfMissing = true)
+    public IndexCatalog indexCatalog() {
+        return new IndexCatalog(elasticsearchHighLevelClient().getLowLevelClient(), indexCatalogLoadInterval);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    @ConditionalOnProperty(name = "no.difi.statistics.elasticsearch.index-template.enabled", havingValue = "true", matchIfMissing = true)
+    public IndexTemplate indexTemplate() {
+        return new IndexTemplate(
+                elasticsearchHighLevelClient().getLowLevelClient(),
+                indexTemplateName,
+                indexTemplateIndexPatterns,
+                indexTemplateSettings(),
+                Duration.ofSeconds(30)
+        );
+    }
+
+    private IndexTemplate.Settings indexTemplateSettings() {
+        return IndexTemplate.settings()
+                .shards(indexTemplateShards)
+                .replicas(indexTemplateReplicas)
+                .refreshInterval(indexTemplateRefreshInterval)
+                .indexMeasurements(indexTemplateIndexMeasurements);
+    }
+
+    @Bean
+    public Backfills backfills() {
+        return new Backfills(elasticsearchHighLevelClient().getLowLevelClient(), indexTemplateSettings());
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "no.difi.statistics.elasticsearch.rollup.enabled", havingValue = "true")
+    public Rollups rollups() {
+        return new Rollups(elasticsearchHighLevelClient(), bulkWriter(), indexNameCache(), DocumentEncoder.forContentType(contentType),
+                lastPointCache(), indexCatalogEnabled ? indexCatalog() : null, rollupStateIndex, rollupSeriesSuffix, rollupFlushInterval, rollupMaxPending);
+    }
+
+    @Bean(destroyMethod = "close")
+    public BulkWriter bulkWriter() {
+        return new BulkWriter(elasticsearchBulkClient(), bulkMaxActions, bulkMaxBytes, bulkLinger, bulkQueueCapacity, bulkSubmitTimeout, bulkMaxConcurrentRequests,
+                new Retry(bulkRetryMaxAttempts, bulkRetryInitialBackoff, bulkRetryMaxBackoff, bulkRetryTimeout), ingestMetrics);
+    }
+
+    /**
+     * Ingest responses are written when the points have been stored, which may take until both the submit timeout and
+     * the retry timeout of the bulk writer have run out, and then the last bulk request. Unless configured explicitly,
+     * the timeout of asynchronous requests is derived from these, as the container's default is shorter.
+     */
+    @Bean
+    public WebMvcConfigurer asyncRequestTimeout() {
+        return new WebMvcConfigurer() {
+            @Override
+            public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+                if (asyncRequestTimeout == null)
+                    configurer.setDefaultTimeout(bulkSubmitTimeout.plus(bulkRetryTimeout).plus(socketTimeout).toMillis());
+            }
+        };
     }
 
     @Bean
     public Client elasticsearchClient() {
-        return new Client(elasticsearchHighLevelClient(), getHttpScheme() + "://" + elasticSearchHost + ":" + elasticSearchPort);
+        return new Client(elasticsearchHighLevelClient(), nodes().get(0).getHost().toURI());
     }
 
     @Bean(destroyMethod = "close")
+    @Primary
     public RestHighLevelClient elasticsearchHighLevelClient() {
-        return new RestHighLevelClient(elasticsearchLowLevelClient());
+        return new RestHighLevelClient(elasticsearchLowLevelClient(false));
+    }
+
+    /**
+     * Client for the bulk requests of the bulk writer, which go to ingest nodes when there are any. Searches and
+     * other requests use the other client, and are spread over all nodes.
+     */
+    @Bean(destroyMethod = "close")
+    public RestHighLevelClient elasticsearchBulkClient() {
+        return new RestHighLevelClient(elasticsearchLowLevelClient(true));
     }
 
-    private RestClientBuilder elasticsearchLowLevelClient() {
+    /**
+     * Requests are spread round robin over the nodes. Nodes failing are left out for a while, backing off for longer
+     * the more times they fail, while requests go to the other nodes.
+     *
+     * The two clients share the connections configured with <code>max-connections</code> and
+     * <code>max-connections-per-route</code>, the bulk client getting the larger half of an odd number.
+     *
+     * @param preferIngestNodes true to send requests to the nodes known to be ingest nodes, when any of them is alive
+     */
+    private RestClientBuilder elasticsearchLowLevelClient(boolean preferIngestNodes) {
         Header[] headers = new Header[]{new BasicHeader("Authorization", "ApiKey " + elasticSearchApiKey)};
-        RestClientBuilder builder = RestClient.builder(new HttpHost(elasticSearchHost, elasticSearchPort, getHttpScheme()));
+        RestClientBuilder builder = RestClient.builder(nodes().toArray(new Node[0]));
         builder.setDefaultHeaders(headers);
+        // Gzip request bodies, which mostly matters for bulk requests of repetitive documents
+        builder.setCompressionEnabled(compression);
+        if (preferIngestNodes)
+            builder.setNodeSelector(new PreferIngestNodeSelector());
+        builder.setFailureListener(new RestClient.FailureListener() {
+            @Override
+            public void onFailure(Node node) {
+                logger.warn("Elasticsearch node {} failed, trying other nodes", node.getHost());
+            }
+        });
+        builder.setRequestConfigCallback(requestConfig -> requestConfig
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setSocketTimeout((int) socketTimeout.toMillis()));
+        builder.setHttpClientConfigCallback(httpClient -> httpClient
+                .setMaxConnPerRoute(share(maxConnectionsPerRoute, preferIngestNodes))
+                .setMaxConnTotal(share(maxConnections, preferIngestNodes))
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive.toMillis()) : keepAlive.toMillis();
+                }));
         return builder;
     }
 
+    private static int share(int connections, boolean larger) {
+        return Math.max(1, larger ? (connections + 1) / 2 : connections / 2);
+    }
+
+    /**
+     * The nodes configured with <code>nodes</code>, or the single node given by <code>host</code> and
+     * <code>port</code>. Nodes listed in <code>ingest-nodes</code> are known to be ingest nodes, and are preferred for
+     * bulk requests. A node URI without a port has port {@value #defaultPort}.
+     */
+    private List<Node> nodes() {
+        List<Node> result = new ArrayList<>();
+        if (nodes.isEmpty())
+            result.add(new Node(new HttpHost(elasticSearchHost, elasticSearchPort, getHttpScheme())));
+        else
+            nodes.forEach(uri -> result.add(new Node(host(uri))));
+        for (URI uri : ingestNodes) {
+            HttpHost host = host(uri);
+            result.removeIf(node -> node.getHost().equals(host));
+            result.add(new Node(host, null, null, null, new Node.Roles(Set.of("ingest")), null));
+        }
+        return result;
+    }
+
+    private static HttpHost host(URI uri) {
+        return new HttpHost(uri.getHost(), uri.getPort() == -1 ? defaultPort : uri.getPort(), uri.getScheme());
+    }
+
     private String getHttpScheme() {
+        if (!httpScheme.isEmpty())
+            return httpScheme;
         String scheme = "http";
-        // TODO put this into config?
         if (elasticSearchHost.endsWith("elastic-cloud.com")) {
             scheme = "https";
         }
@@ -0,0 +1,41 @@
+package no.difi.statistics.elasticsearch.config;
+
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+import java.util.Iterator;
+
+/**
+ * Sends requests to ingest nodes when any of the candidate nodes is known to be one, and to any node otherwise. The
+ * rest client applies the selector to the nodes it considers alive first, so when all ingest nodes are failing,
+ * requests fail over to the other nodes.
+ */
+public class PreferIngestNodeSelector implements NodeSelector {
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        boolean anyIngestNode = false;
+        for (Node node : nodes) {
+            if (isIngestNode(node)) {
+                anyIngestNode = true;
+                break;
+            }
+        }
+        if (!anyIngestNode)
+            return;
+        for (Iterator<Node> iterator = nodes.iterator(); iterator.hasNext(); ) {
+            if (!isIngestNode(iterator.next()))
+                iterator.remove();
+        }
+    }
+
+    private static boolean isIngestNode(Node node) {
+        return node.getRoles() != null && node.getRoles().isIngest();
+    }
+
+    @Override
+    public String toString() {
+        return "PREFER_INGEST";
+    }
+
+}
@@ -0,0 +1,91 @@
+package no.difi.statistics.elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BackfillsTest {
+
+    private final List<String> requests = new ArrayList<>();
+    private HttpServer server;
+    private RestClient client;
+    private Backfills backfills;
+    private volatile String settings = "{}";
+    private volatile boolean templateExists;
+
+    @BeforeEach
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort(), "http")).build();
+        backfills = new Backfills(client, IndexTemplate.settings());
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void whenBackfillIsStartedThenTheTemplateIsCreatedOnlyIfAbsentAndDeletedOnClose() {
+        backfills.start(LastPointSearchTest.seriesDefinition("series")).close();
+        assertTrue(requests.get(1).startsWith("PUT /_index_template/backfill-"), requests.toString());
+        assertTrue(requests.get(1).contains("create=true"), requests.toString());
+        assertTrue(requests.stream().anyMatch(request -> request.startsWith("DELETE /_index_template/backfill-")), requests.toString());
+    }
+
+    @Test
+    public void whenTemplateExistsThenBackfillIsRefusedWithoutChangingSettings() {
+        templateExists = true;
+        assertThrows(IllegalStateException.class, () -> backfills.start(LastPointSearchTest.seriesDefinition("series")));
+        assertEquals(0, requests.stream().filter(request -> request.contains("/_settings") && request.startsWith("PUT")).count(), requests.toString());
+        assertEquals(0, requests.stream().filter(request -> request.startsWith("DELETE")).count(), requests.toString());
+    }
+
+    @Test
+    public void whenAnIndexHasPeriodicRefreshTurnedOffThenBackfillIsRefusedWithoutCreatingTheTemplate() {
+        settings = "{\"991825827@series@minute2021\":{\"settings\":{\"index.refresh_interval\":\"-1\",\"index.number_of_replicas\":\"0\"}}}";
+        assertThrows(IllegalStateException.class, () -> backfills.start(LastPointSearchTest.seriesDefinition("series")));
+        assertEquals(1, requests.size(), requests.toString());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String request = exchange.getRequestMethod() + " " + exchange.getRequestURI();
+        synchronized (requests) {
+            requests.add(request);
+        }
+        int status = 200;
+        String body = "{\"acknowledged\":true}";
+        if (request.startsWith("GET ") && request.contains("/_settings")) {
+            body = settings;
+        } else if (request.startsWith("PUT /_index_template/") && templateExists) {
+            status = 400;
+            body = "{\"error\":{\"type\":\"illegal_argument_exception\",\"reason\":\"index template [backfill] already exists\"},\"status\":400}";
+        }
+        exchange.getRequestBody().readAllBytes();
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
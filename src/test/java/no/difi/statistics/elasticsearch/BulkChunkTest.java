@@ -0,0 +1,74 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.api.IngestResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static no.difi.statistics.api.IngestResponse.Status.Conflict;
+import static no.difi.statistics.api.IngestResponse.Status.Failed;
+import static no.difi.statistics.api.IngestResponse.Status.Ok;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BulkChunkTest {
+
+    @Test
+    public void whenDocumentsAreAddedMoreThanOnceThenTheLastVersionIsSentAndEachPositionGetsItsStatus() {
+        BulkChunk chunk = new BulkChunk();
+        chunk.add(request("a", 1));
+        chunk.add(request("b", 1));
+        chunk.add(request("a", 2));
+        chunk.add(request("c", 1));
+        chunk.add(request("b", 2));
+        chunk.add(request("a", 3));
+        List<IndexRequest> requests = chunk.requests();
+        assertEquals(3, requests.size());
+        assertEquals(6, chunk.size());
+        assertEquals("a", requests.get(0).id());
+        assertEquals("b", requests.get(1).id());
+        assertEquals("c", requests.get(2).id());
+        assertEquals(version(3), requests.get(0).source().utf8ToString());
+        assertEquals(version(2), requests.get(1).source().utf8ToString());
+        assertEquals(version(1), requests.get(2).source().utf8ToString());
+        assertEquals(requests.stream().mapToLong(BulkWriter::estimatedSize).sum(), chunk.bytes());
+        assertArrayEquals(
+                new IngestResponse.Status[]{Ok, Conflict, Ok, Failed, Conflict, Ok},
+                chunk.statuses(new IngestResponse.Status[]{Ok, Conflict, Failed})
+        );
+    }
+
+    @Test
+    public void whenSameIdIsAddedToDifferentIndicesThenTheyAreNotCollapsed() {
+        BulkChunk chunk = new BulkChunk();
+        chunk.add(new IndexRequest("index1").id("a").source(version(1), XContentType.JSON));
+        chunk.add(new IndexRequest("index2").id("a").source(version(1), XContentType.JSON));
+        assertEquals(2, chunk.requests().size());
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Conflict}, chunk.statuses(new IngestResponse.Status[]{Ok, Conflict}));
+    }
+
+    @Test
+    public void whenManyPointsCollapseIntoFewRequestsThenEveryPositionGetsAStatus() {
+        BulkChunk chunk = new BulkChunk();
+        for (int i = 0; i < 200; i++)
+            chunk.add(request(String.valueOf(i % 2), i));
+        assertEquals(2, chunk.requests().size());
+        assertEquals(version(198), chunk.requests().get(0).source().utf8ToString());
+        assertEquals(version(199), chunk.requests().get(1).source().utf8ToString());
+        IngestResponse.Status[] statuses = chunk.statuses(new IngestResponse.Status[]{Ok, Failed});
+        assertEquals(200, statuses.length);
+        for (int i = 0; i < statuses.length; i++)
+            assertEquals(i % 2 == 0 ? Ok : Failed, statuses[i]);
+    }
+
+    private static IndexRequest request(String id, int version) {
+        return new IndexRequest("owner@series@minute2021").id(id).source(version(version), XContentType.JSON);
+    }
+
+    private static String version(int version) {
+        return "{\"version\":" + version + "}";
+    }
+
+}
@@ -0,0 +1,403 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.api.IngestResponse;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static no.difi.statistics.api.IngestResponse.Status.Conflict;
+import static no.difi.statistics.api.IngestResponse.Status.Failed;
+import static no.difi.statistics.api.IngestResponse.Status.Ok;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BulkWriterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final IngestMetrics ingestMetrics = new IngestMetrics(registry, 100);
+    private final FakeTransport transport = new FakeTransport();
+    private BulkWriter bulkWriter;
+
+    @AfterEach
+    public void close() {
+        if (bulkWriter != null)
+            bulkWriter.close();
+    }
+
+    @Test
+    public void whenCallersSubmitConcurrentlyThenTheyShareBulkRequestsAndEachGetsItsOwnStatuses() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(200), noRetry());
+        transport.respond((request, attempt) -> request.id().endsWith("-conflict") ? RestStatus.CONFLICT : RestStatus.CREATED);
+        int callers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<IngestResponse.Status[]>> results = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                int caller = c;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return bulkWriter.submit(requests(caller)).get(10, SECONDS);
+                }));
+            }
+            start.countDown();
+            for (int c = 0; c < callers; c++)
+                assertArrayEquals(expectedStatuses(c), results.get(c).get(10, SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(transport.requests().size() < callers, "Expected fewer bulk requests than callers, got " + transport.requests().size());
+        assertEquals(callers * 3, transport.requests().stream().mapToInt(BulkRequest::numberOfActions).sum());
+    }
+
+    @Test
+    public void whenSubmissionExceedsMaxActionsThenItIsSplitAndStatusesAreInOrder() throws Exception {
+        bulkWriter = bulkWriter(2, Long.MAX_VALUE, Duration.ofMillis(10), noRetry());
+        transport.respond((request, attempt) -> Integer.parseInt(request.id()) % 2 == 1 ? RestStatus.CONFLICT : RestStatus.CREATED);
+        transport.hold();
+        CompletableFuture<IngestResponse.Status[]> result = bulkWriter.submit(List.of(request("0", 10), request("1", 10), request("2", 10), request("3", 10), request("4", 10)));
+        transport.awaitRequests(3);
+        transport.releaseInReverse();
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Conflict, Ok, Conflict, Ok}, result.get(10, SECONDS));
+        List<BulkRequest> requests = transport.requests();
+        assertEquals(3, requests.size());
+        requests.forEach(request -> assertTrue(request.numberOfActions() <= 2));
+    }
+
+    @Test
+    public void whenSubmissionExceedsMaxBytesThenItIsSplitAndStatusesAreInOrder() throws Exception {
+        long requestSize = BulkWriter.estimatedSize(request("0", 100));
+        bulkWriter = bulkWriter(1000, requestSize * 2, Duration.ofMillis(10), noRetry());
+        transport.respond((request, attempt) -> request.id().equals("3") ? RestStatus.CONFLICT : RestStatus.CREATED);
+        transport.hold();
+        CompletableFuture<IngestResponse.Status[]> result = bulkWriter.submit(List.of(request("0", 100), request("1", 100), request("2", 100), request("3", 100), request("4", 100)));
+        transport.awaitRequests(3);
+        transport.releaseInReverse();
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Ok, Ok, Conflict, Ok}, result.get(10, SECONDS));
+        List<BulkRequest> requests = transport.requests();
+        assertEquals(3, requests.size());
+        requests.forEach(request -> assertTrue(request.requests().stream().mapToLong(r -> BulkWriter.estimatedSize((IndexRequest) r)).sum() <= requestSize * 2));
+    }
+
+    @Test
+    public void whenChunksCannotBeQueuedThenTheyFailWhileChunksQueuedBeforeAreWritten() throws Exception {
+        // One chunk in flight, one waiting in the flusher for a free slot and one in the queue, so the fourth times out
+        bulkWriter = bulkWriter(1, Long.MAX_VALUE, Duration.ofMillis(10), 1, Duration.ofMillis(200), 1, noRetry());
+        transport.hold();
+        CompletableFuture<IngestResponse.Status[]> result = bulkWriter.submit(List.of(request("0", 10), request("1", 10), request("2", 10), request("3", 10), request("4", 10)));
+        transport.release();
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Ok, Ok, Failed, Failed}, result.get(10, SECONDS));
+        assertEquals(3, transport.requests().size());
+    }
+
+    @Test
+    public void whenFirstChunkCannotBeQueuedThenSubmitFails() {
+        bulkWriter = bulkWriter(1, Long.MAX_VALUE, Duration.ofMillis(10), 1, Duration.ofMillis(200), 1, noRetry());
+        transport.hold();
+        bulkWriter.submit(List.of(request("0", 10), request("1", 10), request("2", 10)));
+        assertThrows(RuntimeException.class, () -> bulkWriter.submit(List.of(request("3", 10))));
+        transport.release();
+    }
+
+    @Test
+    public void whenItemsAreRejectedWithBackPressureThenOnlyTheyAreRetried() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(10), new Retry(3, Duration.ofMillis(10), Duration.ofMillis(100), Duration.ofSeconds(10)));
+        transport.respond((request, attempt) -> {
+            if (attempt > 0) return RestStatus.CREATED;
+            switch (request.id()) {
+                case "1": return RestStatus.TOO_MANY_REQUESTS;
+                case "2": return RestStatus.SERVICE_UNAVAILABLE;
+                case "3": return RestStatus.CONFLICT;
+                default: return RestStatus.CREATED;
+            }
+        });
+        IngestResponse.Status[] statuses = bulkWriter.submit(List.of(request("0", 10), request("1", 10), request("2", 10), request("3", 10))).get(10, SECONDS);
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Ok, Ok, Conflict}, statuses);
+        List<BulkRequest> requests = transport.requests();
+        assertEquals(2, requests.size());
+        assertEquals(List.of("1", "2"), ids(requests.get(1)));
+    }
+
+    @Test
+    public void whenItemsAreRejectedOnEveryAttemptThenTheyFailAfterMaxAttempts() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(10), new Retry(3, Duration.ofMillis(10), Duration.ofMillis(10), Duration.ofSeconds(10)));
+        transport.respond((request, attempt) -> request.id().equals("1") ? RestStatus.TOO_MANY_REQUESTS : RestStatus.CREATED);
+        IngestResponse.Status[] statuses = bulkWriter.submit(List.of(request("0", 10), request("1", 10))).get(10, SECONDS);
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Failed}, statuses);
+        assertEquals(3, transport.requests().size());
+        assertEquals(1.0, registry.get("statistics.ingest.bulk.item.retry.give.ups").functionCounter().count());
+    }
+
+    @Test
+    public void whenRetryDeadlineHasPassedThenItemsAreNotRetried() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(10), new Retry(10, Duration.ofMillis(10), Duration.ofMillis(10), Duration.ZERO));
+        transport.respond((request, attempt) -> RestStatus.SERVICE_UNAVAILABLE);
+        IngestResponse.Status[] statuses = bulkWriter.submit(List.of(request("0", 10))).get(10, SECONDS);
+        assertArrayEquals(new IngestResponse.Status[]{Failed}, statuses);
+        assertEquals(1, transport.requests().size());
+    }
+
+    @Test
+    public void whenNextBackoffWouldPassRetryDeadlineThenItemsAreGivenUpBeforeMaxAttempts() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(10), new Retry(100, Duration.ofMillis(40), Duration.ofMillis(40), Duration.ofMillis(200)));
+        transport.respond((request, attempt) -> RestStatus.TOO_MANY_REQUESTS);
+        IngestResponse.Status[] statuses = bulkWriter.submit(List.of(request("0", 10))).get(10, SECONDS);
+        assertArrayEquals(new IngestResponse.Status[]{Failed}, statuses);
+        // Backoffs are at least 20 ms, so no more than ten attempts fit within the deadline
+        int attempts = transport.requests().size();
+        assertTrue(attempts > 1 && attempts <= 11, "Unexpected number of attempts: " + attempts);
+    }
+
+    @Test
+    public void whenBackoffIsComputedThenItIsWithinHalfAndAllOfTheCappedExponentialCeiling() {
+        Retry retry = new Retry(100, Duration.ofMillis(100), Duration.ofSeconds(5), Duration.ofMinutes(1));
+        for (int attempt = 0; attempt < 70; attempt++) {
+            long ceiling = Math.min(5000, 100L << Math.min(attempt, 20));
+            for (int sample = 0; sample < 100; sample++) {
+                long backoff = retry.backoff(attempt).toMillis();
+                assertTrue(backoff >= ceiling / 2 && backoff <= ceiling, "Backoff " + backoff + " of attempt " + attempt + " out of bounds");
+            }
+        }
+    }
+
+    @Test
+    public void whenClosedWithRetriesWaitingForBackoffThenTheyAreSentRightAway() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(10), new Retry(3, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofMinutes(10)));
+        transport.respond((request, attempt) -> request.id().equals("1") && attempt == 0 ? RestStatus.TOO_MANY_REQUESTS : RestStatus.CREATED);
+        CompletableFuture<IngestResponse.Status[]> result = bulkWriter.submit(List.of(request("0", 10), request("1", 10)));
+        awaitRetries(1);
+        long started = System.nanoTime();
+        bulkWriter.close();
+        assertTrue(Duration.ofNanos(System.nanoTime() - started).compareTo(Duration.ofSeconds(10)) < 0);
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Ok}, result.getNow(null));
+        assertEquals(2, transport.requests().size());
+    }
+
+    @Test
+    public void whenRetriesSentOnCloseAreRejectedAgainThenTheyAreGivenUp() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(10), new Retry(3, Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofMinutes(10)));
+        transport.respond((request, attempt) -> request.id().equals("1") ? RestStatus.TOO_MANY_REQUESTS : RestStatus.CREATED);
+        CompletableFuture<IngestResponse.Status[]> result = bulkWriter.submit(List.of(request("0", 10), request("1", 10)));
+        awaitRetries(1);
+        bulkWriter.close();
+        assertArrayEquals(new IngestResponse.Status[]{Ok, Failed}, result.getNow(null));
+        assertEquals(2, transport.requests().size());
+        assertEquals(1.0, registry.get("statistics.ingest.bulk.item.retry.give.ups").functionCounter().count());
+    }
+
+    @Test
+    public void whenSubmittingWhileClosingThenEverySubmissionIsRefusedOrCompleted() throws Exception {
+        bulkWriter = bulkWriter(1000, Long.MAX_VALUE, Duration.ofMillis(1), noRetry());
+        int callers = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<List<CompletableFuture<IngestResponse.Status[]>>>> submitted = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                int caller = c;
+                submitted.add(executor.submit(() -> {
+                    List<CompletableFuture<IngestResponse.Status[]>> results = new ArrayList<>();
+                    start.await();
+                    try {
+                        while (true)
+                            results.add(bulkWriter.submit(requests(caller)));
+                    } catch (IllegalStateException e) {
+                        return results;
+                    }
+                }));
+            }
+            start.countDown();
+            Thread.sleep(50);
+            bulkWriter.close();
+            // A submission accepted while closing must still complete, either written or failed
+            for (Future<List<CompletableFuture<IngestResponse.Status[]>>> results : submitted)
+                for (CompletableFuture<IngestResponse.Status[]> result : results.get(10, SECONDS))
+                    assertTrue(waitForCompletion(result), "Submission accepted while closing never completed");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean waitForCompletion(CompletableFuture<?> result) {
+        try {
+            result.get(10, SECONDS);
+        } catch (ExecutionException e) {
+            // Failed is completed too
+        } catch (Exception e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void awaitRetries(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (registry.get("statistics.ingest.bulk.item.retries").functionCounter().count() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, registry.get("statistics.ingest.bulk.item.retries").functionCounter().count());
+    }
+
+    private static List<String> ids(BulkRequest request) {
+        List<String> ids = new ArrayList<>();
+        request.requests().forEach(r -> ids.add(r.id()));
+        return ids;
+    }
+
+    /**
+     * @return three requests, where the one at the position given by the caller modulo three is to fail with a conflict
+     */
+    private static List<IndexRequest> requests(int caller) {
+        List<IndexRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            requests.add(request(caller + "-" + i + (i == caller % 3 ? "-conflict" : ""), 10));
+        return requests;
+    }
+
+    private static IngestResponse.Status[] expectedStatuses(int caller) {
+        IngestResponse.Status[] statuses = new IngestResponse.Status[3];
+        for (int i = 0; i < 3; i++)
+            statuses[i] = i == caller % 3 ? Conflict : Ok;
+        return statuses;
+    }
+
+    /**
+     * @param size number of bytes of the source of the request
+     */
+    static IndexRequest request(String id, int size) {
+        String padding = "x".repeat(Math.max(0, size - 8));
+        return new IndexRequest("owner@series@minute2021").id(id).source("{\"a\":\"" + padding + "\"}", XContentType.JSON);
+    }
+
+    private BulkWriter bulkWriter(int maxActions, long maxBytes, Duration linger, Retry retry) {
+        return bulkWriter(maxActions, maxBytes, linger, 100, Duration.ofSeconds(10), 4, retry);
+    }
+
+    private BulkWriter bulkWriter(int maxActions, long maxBytes, Duration linger, int queueCapacity, Duration submitTimeout, int maxConcurrentRequests, Retry retry) {
+        BulkWriter bulkWriter = new BulkWriter(transport, maxActions, maxBytes, linger, queueCapacity, submitTimeout, maxConcurrentRequests, retry, ingestMetrics);
+        bulkWriter.bindTo(registry);
+        return bulkWriter;
+    }
+
+    private static Retry noRetry() {
+        return new Retry(1, Duration.ofMillis(10), Duration.ofMillis(10), Duration.ofSeconds(10));
+    }
+
+    /**
+     * Responds to bulk requests with the status given for each item by its attempt, counted per document id.
+     */
+    static class FakeTransport implements BulkWriter.Transport {
+
+        private final List<BulkRequest> requests = new ArrayList<>();
+        private final Map<String, Integer> attempts = new HashMap<>();
+        private final List<Runnable> held = new ArrayList<>();
+        private BiFunction<IndexRequest, Integer, RestStatus> status = (request, attempt) -> RestStatus.CREATED;
+        private boolean hold;
+
+        @Override
+        public void bulkAsync(BulkRequest request, ActionListener<BulkResponse> listener) {
+            Runnable response;
+            synchronized (this) {
+                requests.add(request);
+                BulkResponse bulkResponse = response(request);
+                response = () -> listener.onResponse(bulkResponse);
+                if (hold) {
+                    held.add(response);
+                    notifyAll();
+                    return;
+                }
+            }
+            response.run();
+        }
+
+        /**
+         * Holds back responses until released.
+         */
+        synchronized void hold() {
+            hold = true;
+        }
+
+        void release() {
+            release(false);
+        }
+
+        /**
+         * Releases the responses held back, the last one first, and responds right away from now on.
+         */
+        void releaseInReverse() {
+            release(true);
+        }
+
+        private void release(boolean reverse) {
+            List<Runnable> responses;
+            synchronized (this) {
+                hold = false;
+                responses = new ArrayList<>(held);
+                held.clear();
+            }
+            if (reverse)
+                Collections.reverse(responses);
+            responses.forEach(Runnable::run);
+        }
+
+        synchronized void awaitRequests(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (requests.size() < count && System.currentTimeMillis() < deadline)
+                wait(100);
+            assertEquals(count, requests.size());
+        }
+
+        /**
+         * @param status status of an item, by the request and the zero-based number of the attempt
+         */
+        synchronized void respond(BiFunction<IndexRequest, Integer, RestStatus> status) {
+            this.status = status;
+        }
+
+        synchronized List<BulkRequest> requests() {
+            return new ArrayList<>(requests);
+        }
+
+        private BulkResponse response(BulkRequest request) {
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                IndexRequest item = (IndexRequest) request.requests().get(i);
+                int attempt = attempts.merge(item.id(), 1, Integer::sum) - 1;
+                RestStatus itemStatus = status.apply(item, attempt);
+                items[i] = itemStatus == RestStatus.CREATED || itemStatus == RestStatus.OK
+                        ? new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new IndexResponse(new ShardId(item.index(), "_na_", 0), "_doc", item.id(), 0, 1, 1, true))
+                        : new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new BulkItemResponse.Failure(item.index(), "_doc", item.id(), new ElasticsearchException(itemStatus.name()), itemStatus));
+            }
+            return new BulkResponse(items, 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,134 @@
+package no.difi.statistics.elasticsearch;
+
+import com.sun.net.httpserver.HttpServer;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class IndexCatalogTest {
+
+    private HttpServer server;
+    private RestClient client;
+    private IndexCatalog catalog;
+    private volatile String indices = "";
+    private volatile int status = 200;
+
+    @BeforeEach
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_cat/indices", exchange -> {
+            byte[] body = indices.getBytes(UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort(), "http")).build();
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        if (catalog != null)
+            catalog.close();
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void whenIndicesAreLoadedThenOnlyExistingIndicesAndWildcardsAreKeptInOrder() throws Exception {
+        indices = "c\na\n";
+        catalog = loaded();
+        assertEquals(List.of("a", "b*", "c"), catalog.existing(List.of("a", "b", "b*", "c", "d")));
+    }
+
+    @Test
+    public void whenIndicesHaveNotBeenLoadedThenAllIndicesAreKept() {
+        status = 500;
+        catalog = new IndexCatalog(client, Duration.ofHours(1));
+        assertEquals(List.of("a", "b"), catalog.existing(List.of("a", "b")));
+    }
+
+    @Test
+    public void whenIndexIsCreatedThenItExistsBeforeTheNextLoad() throws Exception {
+        indices = "a\n";
+        catalog = loaded();
+        catalog.created("b");
+        assertEquals(List.of("a", "b"), catalog.existing(List.of("a", "b", "c")));
+    }
+
+    @Test
+    public void whenLoadFailsThenTheIndicesLoadedBeforeAreKept() throws Exception {
+        indices = "a\n";
+        catalog = new IndexCatalog(client, Duration.ofMillis(10));
+        awaitLoaded(catalog);
+        status = 500;
+        Thread.sleep(100);
+        assertEquals(List.of("a"), catalog.existing(List.of("a", "b")));
+    }
+
+    @Test
+    public void whenSearchingForLastPointThenOnlyExistingIndicesAreProbedNewestFirst() throws Exception {
+        TimeSeriesDefinition seriesDefinition = LastPointSearchTest.seriesDefinition("series");
+        List<String> indexNames = LastPointSearchTest.newestFirst(seriesDefinition);
+        String newest = indexNames.get(0);
+        String oldest = indexNames.get(indexNames.size() - 1);
+        indices = oldest + "\n" + newest + "\n";
+        catalog = loaded();
+        LastPointSearchTest.FakeTransport transport = new LastPointSearchTest.FakeTransport();
+
+        new LastPointSearch(transport, 1, 100, catalog).last(seriesDefinition).get(10, SECONDS);
+
+        assertEquals(List.of(List.of(newest), List.of(oldest)), transport.searches());
+    }
+
+    @Test
+    public void whenNewestIndexIsNotLoadedYetThenItIsProbedAnyway() throws Exception {
+        TimeSeriesDefinition seriesDefinition = LastPointSearchTest.seriesDefinition("series");
+        List<String> indexNames = LastPointSearchTest.newestFirst(seriesDefinition);
+        String newest = indexNames.get(0);
+        String oldest = indexNames.get(indexNames.size() - 1);
+        // The newest index was created through another instance after the indices were loaded
+        indices = oldest + "\n";
+        catalog = loaded();
+        LastPointSearchTest.FakeTransport transport = new LastPointSearchTest.FakeTransport();
+        ZonedDateTime timestamp = ZonedDateTime.of(2021, 3, 3, 0, 0, 0, 0, ZoneOffset.UTC);
+        transport.respond(indexName -> indexName.equals(newest) ? timestamp : null);
+
+        TimeSeriesPoint point = new LastPointSearch(transport, 1, 100, catalog).last(seriesDefinition).get(10, SECONDS);
+
+        assertEquals(timestamp.toInstant(), point.getTimestamp().toInstant());
+        assertEquals(List.of(List.of(newest)), transport.searches());
+    }
+
+    private IndexCatalog loaded() throws InterruptedException {
+        IndexCatalog catalog = new IndexCatalog(client, Duration.ofHours(1));
+        awaitLoaded(catalog);
+        return catalog;
+    }
+
+    private static void awaitLoaded(IndexCatalog catalog) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        // An index name not loaded is kept only until the indices have been loaded
+        while (!catalog.existing(List.of("not-loaded")).isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(List.of(), catalog.existing(List.of("not-loaded")));
+    }
+
+}
@@ -0,0 +1,41 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class IndexNameCacheTest {
+
+    private final TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("series").minutes().owner("123456789");
+
+    @Test
+    public void whenTimestampsShareLocalDayButNotUtcDayThenTheyGetTheIndexOfTheirUtcDay() {
+        IndexNameCache cache = new IndexNameCache(100);
+        ZonedDateTime beforeMidnightUtc = ZonedDateTime.parse("2022-01-01T00:30+02:00"); // 2021-12-31T22:30Z
+        ZonedDateTime afterMidnightUtc = ZonedDateTime.parse("2022-01-01T03:00+02:00"); // 2022-01-01T01:00Z
+        String first = cache.indexName(seriesDefinition, beforeMidnightUtc);
+        String second = cache.indexName(seriesDefinition, afterMidnightUtc);
+        assertEquals(resolved(beforeMidnightUtc), first);
+        assertEquals(resolved(afterMidnightUtc), second);
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void whenTimestampsShareUtcDayButNotOffsetThenEachGetsItsResolvedIndex() {
+        IndexNameCache cache = new IndexNameCache(100);
+        ZonedDateTime utc = ZonedDateTime.parse("2021-12-31T23:30Z");
+        ZonedDateTime ahead = ZonedDateTime.parse("2022-01-01T00:45+01:00"); // 2021-12-31T23:45Z
+        assertEquals(resolved(utc), cache.indexName(seriesDefinition, utc));
+        assertEquals(resolved(ahead), cache.indexName(seriesDefinition, ahead));
+    }
+
+    private String resolved(ZonedDateTime timestamp) {
+        return resolveIndexName().seriesDefinition(seriesDefinition).at(timestamp).single();
+    }
+
+}
@@ -0,0 +1,44 @@
+package no.difi.statistics.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.common.Strings;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class IndexTemplateTest {
+
+    @Test
+    public void whenCategoriesAreMappedThenTheyKeepTheKeywordSubFieldOfDynamicMapping() throws Exception {
+        JsonNode mapping = dynamicTemplate("categories").get("mapping");
+        assertEquals("keyword", mapping.get("type").asText());
+        assertEquals("keyword", mapping.get("fields").get("keyword").get("type").asText());
+        assertEquals(256, mapping.get("fields").get("keyword").get("ignore_above").asInt());
+    }
+
+    @Test
+    public void whenMeasurementsAreNotIndexedThenTheyAreMappedWithoutIndex() throws Exception {
+        JsonNode mapping = dynamicTemplate(IndexTemplate.settings().indexMeasurements(false), "measurements").get("mapping");
+        assertEquals("long", mapping.get("type").asText());
+        assertEquals(false, mapping.get("index").asBoolean());
+    }
+
+    private static JsonNode dynamicTemplate(String name) throws Exception {
+        return dynamicTemplate(IndexTemplate.settings(), name);
+    }
+
+    private static JsonNode dynamicTemplate(IndexTemplate.Settings settings, String name) throws Exception {
+        IndexTemplate template = new IndexTemplate(null, "statistics", List.of("*@*@*"), settings, Duration.ofSeconds(1));
+        JsonNode body = new ObjectMapper().readTree(Strings.toString(template.body()));
+        for (JsonNode dynamicTemplate : body.get("template").get("mappings").get("dynamic_templates")) {
+            if (dynamicTemplate.has(name))
+                return dynamicTemplate.get(name);
+        }
+        throw new AssertionError("No dynamic template " + name);
+    }
+
+}
@@ -0,0 +1,254 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.IngestMetrics;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static no.difi.statistics.elasticsearch.BulkWriterTest.request;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JournalTest {
+
+    private static final int segmentSize = 64 * 1024;
+
+    @TempDir
+    Path directory;
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final List<BulkWriter> bulkWriters = new ArrayList<>();
+    private final List<Journal> journals = new ArrayList<>();
+
+    @AfterEach
+    public void close() {
+        journals.forEach(Journal::close);
+        bulkWriters.forEach(BulkWriter::close);
+    }
+
+    @Test
+    public void whenBatchesAreAppendedThenTheyAreReplayedInOrder() throws Exception {
+        BulkWriterTest.FakeTransport transport = new BulkWriterTest.FakeTransport();
+        Journal journal = journal(segmentSize, transport);
+        journal.append(List.of(request("0", 10), request("1", 10)));
+        journal.append(List.of(request("2", 10)));
+        awaitIds(transport, 3);
+        assertEquals(List.of("0", "1", "2"), ids(transport));
+        assertEquals(3.0, registry.get("statistics.ingest.journal.points.appended").functionCounter().count());
+        awaitCount("statistics.ingest.journal.points.replayed", 3);
+    }
+
+    @Test
+    public void whenJournalIsReopenedThenReplayResumesFromTheCheckpoint() throws Exception {
+        BulkWriterTest.FakeTransport transport = new BulkWriterTest.FakeTransport();
+        Journal journal = journal(segmentSize, transport);
+        journal.append(List.of(request("0", 10), request("1", 10)));
+        awaitIds(transport, 2);
+        awaitCheckpointBeyondStart();
+        close();
+        journals.clear();
+        bulkWriters.clear();
+
+        BulkWriterTest.FakeTransport transportAfterRestart = new BulkWriterTest.FakeTransport();
+        Journal journalAfterRestart = journal(segmentSize, transportAfterRestart);
+        journalAfterRestart.append(List.of(request("2", 10)));
+        awaitIds(transportAfterRestart, 1);
+        Thread.sleep(200);
+        assertEquals(List.of("2"), ids(transportAfterRestart));
+    }
+
+    @Test
+    public void whenReplayFailsUntilCloseThenBatchesAreReplayedOnNextStart() throws Exception {
+        Journal journal = journal(segmentSize, unavailable());
+        journal.append(List.of(request("0", 10)));
+        journal.append(List.of(request("1", 10)));
+        close();
+        journals.clear();
+        bulkWriters.clear();
+
+        BulkWriterTest.FakeTransport transport = new BulkWriterTest.FakeTransport();
+        journal(segmentSize, transport);
+        awaitIds(transport, 2);
+        assertEquals(List.of("0", "1"), ids(transport));
+    }
+
+    @Test
+    public void whenLastRecordIsCorruptedThenItIsDroppedOnRecovery() throws Exception {
+        Journal journal = journal(segmentSize, unavailable());
+        journal.append(List.of(request("0", 10)));
+        journal.append(List.of(request("1", 10)));
+        close();
+        journals.clear();
+        bulkWriters.clear();
+        int lastRecord = recordOffsets(onlySegment()).get(1);
+        corrupt(onlySegment(), lastRecord + 8 + 1); // First byte of the batch after the length, checksum and count
+
+        BulkWriterTest.FakeTransport transport = new BulkWriterTest.FakeTransport();
+        Journal journalAfterRestart = journal(segmentSize, transport);
+        awaitIds(transport, 1);
+        journalAfterRestart.append(List.of(request("2", 10)));
+        awaitIds(transport, 2);
+        assertEquals(List.of("0", "2"), ids(transport));
+        assertEquals(List.of(0, lastRecord), recordOffsets(onlySegment()));
+    }
+
+    @Test
+    public void whenLastRecordIsTruncatedThenItIsDroppedOnRecovery() throws Exception {
+        Journal journal = journal(segmentSize, unavailable());
+        journal.append(List.of(request("0", 10)));
+        close();
+        journals.clear();
+        bulkWriters.clear();
+        int end = recordOffsets(onlySegment()).get(0) + 8 + recordLength(onlySegment(), 0);
+        // Header of a record whose batch never made it to disk
+        write(onlySegment(), end, ByteBuffer.allocate(8).putInt(100).putInt(12345).flip());
+
+        BulkWriterTest.FakeTransport transport = new BulkWriterTest.FakeTransport();
+        Journal journalAfterRestart = journal(segmentSize, transport);
+        journalAfterRestart.append(List.of(request("1", 10)));
+        awaitIds(transport, 2);
+        assertEquals(List.of("0", "1"), ids(transport));
+    }
+
+    @Test
+    public void whenSegmentIsFullThenAppendsRollOverToNextSegment() throws Exception {
+        int smallSegmentSize = 1024;
+        Journal journal = journal(smallSegmentSize, unavailable());
+        for (int i = 0; i < 10; i++)
+            journal.append(List.of(request(String.valueOf(i), 200)));
+        close();
+        journals.clear();
+        bulkWriters.clear();
+        List<Path> segments = segments();
+        assertTrue(segments.size() >= 3, "Expected batches spread over several segments, got " + segments.size());
+        for (Path segment : segments)
+            assertEquals(smallSegmentSize, Files.size(segment));
+
+        BulkWriterTest.FakeTransport transport = new BulkWriterTest.FakeTransport();
+        journal(smallSegmentSize, transport);
+        awaitIds(transport, 10);
+        assertEquals(List.of("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), ids(transport));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (segments().size() > 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, segments().size(), "Replayed segments should be deleted");
+    }
+
+    @Test
+    public void whenBatchDoesNotFitInASegmentThenAppendFails() {
+        Journal journal = journal(1024, new BulkWriterTest.FakeTransport());
+        assertThrows(IllegalArgumentException.class, () -> journal.append(List.of(request("0", 2000))));
+    }
+
+    private Journal journal(int segmentSize, BulkWriter.Transport transport) {
+        BulkWriter bulkWriter = new BulkWriter(transport, 1000, 5 * 1024 * 1024, Duration.ofMillis(10), 100, Duration.ofSeconds(10), 4,
+                new Retry(1, Duration.ofMillis(10), Duration.ofMillis(10), Duration.ofSeconds(10)), new IngestMetrics(new SimpleMeterRegistry(), 100));
+        bulkWriters.add(bulkWriter);
+        Journal journal = new Journal(directory, segmentSize, bulkWriter, Duration.ofMillis(50));
+        journal.bindTo(registry);
+        journals.add(journal);
+        return journal;
+    }
+
+    private static BulkWriter.Transport unavailable() {
+        return (request, listener) -> {
+            throw new RuntimeException("Elasticsearch unavailable");
+        };
+    }
+
+    private static List<String> ids(BulkWriterTest.FakeTransport transport) {
+        List<String> ids = new ArrayList<>();
+        for (BulkRequest request : transport.requests())
+            for (DocWriteRequest<?> item : request.requests())
+                ids.add(((IndexRequest) item).id());
+        return ids;
+    }
+
+    private static void awaitIds(BulkWriterTest.FakeTransport transport, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (ids(transport).size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, ids(transport).size());
+    }
+
+    private void awaitCount(String name, double count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (registry.get(name).functionCounter().count() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, registry.get(name).functionCounter().count());
+    }
+
+    private void awaitCheckpointBeyondStart() throws Exception {
+        Path checkpoint = directory.resolve("checkpoint");
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(checkpoint) && ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getInt(Long.BYTES) > 0)
+                return;
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Checkpoint was not written");
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".journal")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    /**
+     * @return offsets of the records of the segment, following the lengths in their headers
+     */
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        while (offset + 8 <= buffer.limit() && buffer.getInt(offset) != 0) {
+            offsets.add(offset);
+            offset += 8 + buffer.getInt(offset);
+        }
+        return offsets;
+    }
+
+    private static int recordLength(Path segment, int offset) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(segment)).getInt(offset);
+    }
+
+    private static void corrupt(Path segment, int offset) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(1);
+        try (FileChannel channel = FileChannel.open(segment, READ, WRITE)) {
+            channel.read(bytes, offset);
+            bytes.put(0, (byte) (bytes.get(0) ^ 0xff)).rewind();
+            channel.write(bytes, offset);
+        }
+    }
+
+    private static void write(Path segment, int offset, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, WRITE)) {
+            channel.write(bytes, offset);
+        }
+    }
+
+}
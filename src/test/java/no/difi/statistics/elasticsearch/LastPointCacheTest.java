@@ -0,0 +1,157 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class LastPointCacheTest {
+
+    private final ZonedDateTime timestamp = ZonedDateTime.of(2021, 3, 3, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition series = seriesDefinition("series");
+    private final Loader loader = new Loader();
+
+    @Test
+    public void whenSeriesIsCachedThenItIsNotLoadedAgain() {
+        LastPointCache cache = new LastPointCache(10, Duration.ofHours(1));
+        loader.last(series, timestamp);
+        assertEquals(timestamp, cache.last(series, loader.of(series)).join().getTimestamp());
+        assertEquals(timestamp, cache.last(series, loader.of(series)).join().getTimestamp());
+        assertEquals(1, loader.loads(series));
+    }
+
+    @Test
+    public void whenSeriesIsEmptyThenItIsNotCached() {
+        LastPointCache cache = new LastPointCache(1, Duration.ofHours(1));
+        TimeSeriesDefinition empty = seriesDefinition("empty");
+        loader.last(series, timestamp);
+        cache.last(series, loader.of(series)).join();
+        assertNull(cache.last(empty, loader.of(empty)).join());
+        assertNull(cache.last(empty, loader.of(empty)).join());
+        cache.last(series, loader.of(series)).join();
+        assertEquals(2, loader.loads(empty));
+        assertEquals(1, loader.loads(series));
+    }
+
+    @Test
+    public void whenEntryHasExpiredThenSeriesIsLoadedAgain() throws InterruptedException {
+        LastPointCache cache = new LastPointCache(10, Duration.ofMillis(50));
+        loader.last(series, timestamp);
+        cache.last(series, loader.of(series)).join();
+        Thread.sleep(100);
+        loader.last(series, timestamp.plusMinutes(1));
+        assertEquals(timestamp.plusMinutes(1), cache.last(series, loader.of(series)).join().getTimestamp());
+        assertEquals(2, loader.loads(series));
+    }
+
+    @Test
+    public void whenCacheIsFullThenTheLeastRecentlyUsedSeriesIsEvicted() {
+        LastPointCache cache = new LastPointCache(2, Duration.ofHours(1));
+        TimeSeriesDefinition a = seriesDefinition("a");
+        TimeSeriesDefinition b = seriesDefinition("b");
+        TimeSeriesDefinition c = seriesDefinition("c");
+        List.of(a, b, c).forEach(seriesDefinition -> loader.last(seriesDefinition, timestamp));
+        cache.last(a, loader.of(a)).join();
+        cache.last(b, loader.of(b)).join();
+        cache.last(a, loader.of(a)).join();
+        cache.last(c, loader.of(c)).join();
+        cache.last(a, loader.of(a)).join();
+        cache.last(b, loader.of(b)).join();
+        assertEquals(1, loader.loads(a));
+        assertEquals(2, loader.loads(b));
+        assertEquals(1, loader.loads(c));
+    }
+
+    @Test
+    public void whenLaterPointIsStoredThenCachedLastPointMovesForward() {
+        LastPointCache cache = new LastPointCache(10, Duration.ofHours(1));
+        loader.last(series, timestamp);
+        cache.last(series, loader.of(series)).join();
+        cache.stored(series, timestamp.plusMinutes(2));
+        cache.stored(series, timestamp.plusMinutes(1));
+        assertEquals(timestamp.plusMinutes(2), cache.last(series, loader.of(series)).join().getTimestamp());
+        assertEquals(1, loader.loads(series));
+    }
+
+    @Test
+    public void whenPointIsStoredInSeriesNotCachedThenSeriesIsLoadedWhenAskedFor() {
+        LastPointCache cache = new LastPointCache(10, Duration.ofHours(1));
+        cache.stored(series, timestamp.minusMinutes(1));
+        loader.last(series, timestamp);
+        assertEquals(timestamp, cache.last(series, loader.of(series)).join().getTimestamp());
+        assertEquals(1, loader.loads(series));
+    }
+
+    @Test
+    public void whenAnOlderLoadCompletesLastThenTheLatestTimestampIsKept() {
+        LastPointCache cache = new LastPointCache(10, Duration.ofHours(1));
+        CompletableFuture<TimeSeriesPoint> slowLoad = new CompletableFuture<>();
+        CompletableFuture<TimeSeriesPoint> slow = cache.last(series, () -> slowLoad);
+        loader.last(series, timestamp.plusMinutes(3));
+        assertEquals(timestamp.plusMinutes(3), cache.last(series, loader.of(series)).join().getTimestamp());
+        slowLoad.complete(TimeSeriesPoint.builder().timestamp(timestamp).build());
+        assertEquals(timestamp.plusMinutes(3), slow.join().getTimestamp());
+        assertEquals(timestamp.plusMinutes(3), cache.last(series, loader.of(series)).join().getTimestamp());
+        assertEquals(1, loader.loads(series));
+    }
+
+    @Test
+    public void whenSeriesAreLookedUpTogetherThenOnlyTheMissingOnesAreLoaded() {
+        LastPointCache cache = new LastPointCache(10, Duration.ofHours(1));
+        TimeSeriesDefinition cached = seriesDefinition("cached");
+        TimeSeriesDefinition missing = seriesDefinition("missing");
+        loader.last(cached, timestamp);
+        cache.last(cached, loader.of(cached)).join();
+        List<List<TimeSeriesDefinition>> loads = new ArrayList<>();
+        Map<TimeSeriesDefinition, TimeSeriesPoint> points = cache.last(List.of(cached, missing), seriesDefinitions -> {
+            loads.add(seriesDefinitions);
+            return CompletableFuture.completedFuture(new HashMap<>());
+        }).join();
+        assertEquals(List.of(List.of(missing)), loads);
+        assertEquals(timestamp, points.get(cached).getTimestamp());
+        assertNull(points.get(missing));
+    }
+
+    private static TimeSeriesDefinition seriesDefinition(String name) {
+        return TimeSeriesDefinition.builder().name(name).minutes().owner("991825827");
+    }
+
+    /**
+     * Last timestamps per series as found in Elasticsearch, counting the loads of each series.
+     */
+    private static class Loader {
+
+        private final Map<TimeSeriesDefinition, ZonedDateTime> last = new HashMap<>();
+        private final Map<TimeSeriesDefinition, Integer> loads = new HashMap<>();
+
+        void last(TimeSeriesDefinition seriesDefinition, ZonedDateTime timestamp) {
+            last.put(seriesDefinition, timestamp);
+        }
+
+        Supplier<CompletableFuture<TimeSeriesPoint>> of(TimeSeriesDefinition seriesDefinition) {
+            return () -> {
+                loads.merge(seriesDefinition, 1, Integer::sum);
+                ZonedDateTime timestamp = last.get(seriesDefinition);
+                return CompletableFuture.completedFuture(timestamp == null ? null : TimeSeriesPoint.builder().timestamp(timestamp).build());
+            };
+        }
+
+        int loads(TimeSeriesDefinition seriesDefinition) {
+            return loads.getOrDefault(seriesDefinition, 0);
+        }
+
+    }
+
+}
@@ -0,0 +1,186 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.metrics.InternalMax;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LastPointSearchTest {
+
+    private final ZonedDateTime timestamp = ZonedDateTime.of(2021, 3, 3, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final FakeTransport transport = new FakeTransport();
+
+    @Test
+    public void whenLastPointIsInTheNewestIndexThenOnlyTheNewestGroupIsProbed() throws Exception {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition("series");
+        List<String> indexNames = newestFirst(seriesDefinition);
+        transport.respond(indexName -> indexName.equals(indexNames.get(0)) ? timestamp : null);
+
+        TimeSeriesPoint point = new LastPointSearch(transport, 2, 100, null).last(seriesDefinition).get(10, SECONDS);
+
+        assertEquals(timestamp.toInstant(), point.getTimestamp().toInstant());
+        assertEquals(List.of(indexNames.subList(0, Math.min(2, indexNames.size()))), transport.searches());
+    }
+
+    @Test
+    public void whenLastPointIsInTheOldestIndexThenIndicesAreProbedNewestFirstInGroups() throws Exception {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition("series");
+        List<String> indexNames = newestFirst(seriesDefinition);
+        assertTrue(indexNames.size() > 2, "Expected the series to have more than two indices, got " + indexNames);
+        transport.respond(indexName -> indexName.equals(indexNames.get(indexNames.size() - 1)) ? timestamp : null);
+
+        TimeSeriesPoint point = new LastPointSearch(transport, 2, 100, null).last(seriesDefinition).get(10, SECONDS);
+
+        assertEquals(timestamp.toInstant(), point.getTimestamp().toInstant());
+        assertEquals(groups(indexNames, 2), transport.searches());
+    }
+
+    @Test
+    public void whenSeriesIsEmptyThenAllIndicesAreProbedAndNoPointIsFound() throws Exception {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition("series");
+        transport.respond(indexName -> null);
+
+        assertNull(new LastPointSearch(transport, 3, 100, null).last(seriesDefinition).get(10, SECONDS));
+        assertEquals(groups(newestFirst(seriesDefinition), 3), transport.searches());
+    }
+
+    @Test
+    public void whenSearchingForManySeriesThenSearchesAreSentInMultiSearchRequestsOfLimitedSize() throws Exception {
+        List<TimeSeriesDefinition> seriesDefinitions = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            seriesDefinitions.add(seriesDefinition("series" + i));
+        String secondNewestOfLast = newestFirst(seriesDefinitions.get(4)).get(1);
+        // All series but the last have points in their newest index, the last one in its second newest
+        transport.respond(indexName -> !indexName.contains("@series4@") || indexName.equals(secondNewestOfLast) ? timestamp : null);
+
+        Map<TimeSeriesDefinition, TimeSeriesPoint> points = new LastPointSearch(transport, 1, 2, null).last(seriesDefinitions).get(10, SECONDS);
+
+        for (TimeSeriesDefinition seriesDefinition : seriesDefinitions)
+            assertEquals(timestamp.toInstant(), points.get(seriesDefinition).getTimestamp().toInstant());
+        assertEquals(List.of(2, 2, 1, 1), transport.multiSearchSizes());
+        assertEquals(List.of(secondNewestOfLast), transport.searches().get(5));
+    }
+
+    @Test
+    public void whenASearchOfAMultiSearchFailsThenTheSearchFails() {
+        transport.respond(indexName -> {
+            throw new IllegalStateException("Search failed");
+        });
+        LastPointSearch search = new LastPointSearch(transport, 1, 2, null);
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> search.last(List.of(seriesDefinition("series0"), seriesDefinition("series1"))).join());
+        assertTrue(e.getCause().getMessage().startsWith("Failed to search for last point of"));
+    }
+
+    static TimeSeriesDefinition seriesDefinition(String name) {
+        return TimeSeriesDefinition.builder().name(name).minutes().owner("991825827");
+    }
+
+    static List<String> newestFirst(TimeSeriesDefinition seriesDefinition) {
+        List<String> indexNames = new ArrayList<>(IndexNameResolver.resolveIndexName().seriesDefinition(seriesDefinition).list());
+        indexNames.sort(Comparator.reverseOrder());
+        return indexNames;
+    }
+
+    static List<List<String>> groups(List<String> indexNames, int groupSize) {
+        List<List<String>> groups = new ArrayList<>();
+        for (int i = 0; i < indexNames.size(); i += groupSize)
+            groups.add(indexNames.subList(i, Math.min(i + groupSize, indexNames.size())));
+        return groups;
+    }
+
+    /**
+     * Responds to each search with the latest timestamp of the indices searched, as given by a function of the index
+     * name, and records the indices of each search in the order sent.
+     */
+    static class FakeTransport implements LastPointSearch.Transport {
+
+        private final List<List<String>> searches = new ArrayList<>();
+        private final List<Integer> multiSearchSizes = new ArrayList<>();
+        private Function<String, ZonedDateTime> last = indexName -> null;
+
+        @Override
+        public void searchAsync(SearchRequest request, ActionListener<SearchResponse> listener) {
+            SearchResponse response;
+            try {
+                response = response(request);
+            } catch (RuntimeException e) {
+                listener.onFailure(e);
+                return;
+            }
+            listener.onResponse(response);
+        }
+
+        @Override
+        public void msearchAsync(MultiSearchRequest request, ActionListener<MultiSearchResponse> listener) {
+            List<MultiSearchResponse.Item> items = new ArrayList<>();
+            synchronized (this) {
+                multiSearchSizes.add(request.requests().size());
+            }
+            for (SearchRequest searchRequest : request.requests()) {
+                try {
+                    items.add(new MultiSearchResponse.Item(response(searchRequest), null));
+                } catch (RuntimeException e) {
+                    items.add(new MultiSearchResponse.Item(null, e));
+                }
+            }
+            listener.onResponse(new MultiSearchResponse(items.toArray(new MultiSearchResponse.Item[0]), 1));
+        }
+
+        private SearchResponse response(SearchRequest request) {
+            synchronized (this) {
+                searches.add(List.of(request.indices()));
+            }
+            ZonedDateTime latest = null;
+            for (String indexName : request.indices()) {
+                ZonedDateTime timestamp = last.apply(indexName);
+                if (timestamp != null && (latest == null || timestamp.isAfter(latest)))
+                    latest = timestamp;
+            }
+            double value = latest == null ? Double.NEGATIVE_INFINITY : latest.toInstant().toEpochMilli();
+            InternalAggregations aggregations = InternalAggregations.from(List.of(new InternalMax("last", value, DocValueFormat.RAW, null)));
+            return new SearchResponse(
+                    new InternalSearchResponse(SearchHits.empty(), aggregations, null, null, false, null, 1),
+                    null, 1, 1, 0, 1, ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+        }
+
+        void respond(Function<String, ZonedDateTime> last) {
+            this.last = last;
+        }
+
+        synchronized List<List<String>> searches() {
+            return new ArrayList<>(searches);
+        }
+
+        synchronized List<Integer> multiSearchSizes() {
+            return new ArrayList<>(multiSearchSizes);
+        }
+
+    }
+
+}
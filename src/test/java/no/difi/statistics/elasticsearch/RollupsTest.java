@@ -0,0 +1,138 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.xcontent.XContentType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.elasticsearch.ElasticsearchContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Testcontainers
+public class RollupsTest {
+
+    @Container
+    public static ElasticsearchContainer container = new ElasticsearchContainer(
+            DockerImageName
+                    .parse("docker.elastic.co/elasticsearch/elasticsearch")
+                    .withTag("7.17.2"));
+
+    private final ZonedDateTime now = ZonedDateTime.of(2021, 3, 3, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final String owner = "123456789";
+    private final TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("series").minutes().owner(owner);
+    private final IndexNameCache indexNameCache = new IndexNameCache(1000);
+    private RestHighLevelClient client;
+    private BulkWriter bulkWriter;
+
+    @BeforeEach
+    public void start() {
+        client = new RestHighLevelClient(RestClient.builder(HttpHost.create(container.getHttpHostAddress())));
+        bulkWriter = new BulkWriter(client, 1000, 5_242_880, Duration.ofMillis(10), 100, Duration.ofSeconds(10), 4,
+                new Retry(3, Duration.ofMillis(50), Duration.ofSeconds(1), Duration.ofSeconds(10)), new IngestMetrics(new SimpleMeterRegistry(), 100));
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        bulkWriter.close();
+        client.close();
+    }
+
+    @Test
+    public void whenFlushesOfTwoInstancesUpdateTheDayInReverseOrderThenTheSumsOfTheNewerHourAreKept() throws Exception {
+        String dayIndex = indexNameCache.indexName(rollupSeries(MeasurementDistance.days), now);
+        CountDownLatch dayUpdateHeld = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // The first instance updates the hour, and holds back its update of the day until the second instance is done
+        Rollups first = rollups(request -> {
+            if (request.requests().get(0).id().startsWith(dayIndex + "/")) {
+                dayUpdateHeld.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return client.bulk(request, RequestOptions.DEFAULT);
+        }, Duration.ofMillis(10));
+        first.stored(seriesDefinition, List.of(point(now, 1)));
+        assertTrue(dayUpdateHeld.await(10, SECONDS));
+
+        Rollups second = rollups(request -> client.bulk(request, RequestOptions.DEFAULT), Duration.ofHours(1));
+        second.stored(seriesDefinition, List.of(point(now, 5)));
+        second.close();
+        assertRollup(MeasurementDistance.days, now, 5);
+
+        release.countDown();
+        first.close();
+        // Closing the bulk writer waits for the rollup points of the first instance to be written
+        bulkWriter.close();
+        assertRollup(MeasurementDistance.hours, now, 5);
+        assertRollup(MeasurementDistance.days, now, 5);
+        assertRollup(MeasurementDistance.months, now.withDayOfMonth(1), 5);
+        assertRollup(MeasurementDistance.years, now.withDayOfYear(1), 5);
+    }
+
+    private Rollups rollups(Rollups.Transport transport, Duration flushInterval) {
+        return new Rollups(client, transport, bulkWriter, indexNameCache, DocumentEncoder.forContentType(XContentType.JSON),
+                new LastPointCache(100, Duration.ofMinutes(1)), null, "statistics-rollups-test", "-rollup", flushInterval, 100_000);
+    }
+
+    private TimeSeriesDefinition rollupSeries(MeasurementDistance distance) {
+        return TimeSeriesDefinition.builder().name("series-rollup").distance(distance).owner(owner);
+    }
+
+    private static TimeSeriesPoint point(ZonedDateTime timestamp, long value) {
+        return TimeSeriesPoint.builder().timestamp(timestamp).measurement("aMeasurement", value).build();
+    }
+
+    /**
+     * Waits for the rollup point to hold the expected sum, as rollup points are written asynchronously, and the held
+     * update of the first instance is flushed after the second instance has written its sums.
+     */
+    private void assertRollup(MeasurementDistance distance, ZonedDateTime normalizedTimestamp, long expected) throws Exception {
+        TimeSeriesDefinition rollupSeries = rollupSeries(distance);
+        GetRequest request = new GetRequest(
+                indexNameCache.indexName(rollupSeries, normalizedTimestamp),
+                IdResolver.id(TimeSeriesPoint.builder().timestamp(normalizedTimestamp).categories(Map.of()).measurements(Map.of()).build(), rollupSeries)
+        );
+        long deadline = System.currentTimeMillis() + 10_000;
+        GetResponse response = client.get(request, RequestOptions.DEFAULT);
+        while (!hasSum(response, expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            response = client.get(request, RequestOptions.DEFAULT);
+        }
+        assertTrue(response.isExists(), "No rollup point at " + normalizedTimestamp + " in " + request.index());
+        assertEquals(expected, ((Number) response.getSourceAsMap().get("aMeasurement")).longValue());
+    }
+
+    private static boolean hasSum(GetResponse response, long expected) {
+        return response.isExists() && response.getSourceAsMap().get("aMeasurement") instanceof Number sum && sum.longValue() == expected;
+    }
+
+}
@@ -0,0 +1,85 @@
+package no.difi.statistics.ingest.api;
+
+import no.difi.statistics.IngestService;
+import no.difi.statistics.InndataAPI;
+import no.difi.statistics.api.IngestRestController;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load test showing that the number of concurrent requests is not bounded by the servlet thread pool. Every request
+ * for the last point is held back until all requests have arrived at the service, which only happens if the request
+ * threads are released while waiting for the backend.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "management.endpoints.enabled-by-default = false",
+        "spring.autoconfigure.exclude = org.springframework.boot.autoconfigure.elasticsearch.ElasticsearchRestClientAutoConfiguration",
+        "server.tomcat.threads.max = " + AsyncConcurrencyTest.tomcatThreads,
+        "server.tomcat.threads.min-spare = " + AsyncConcurrencyTest.tomcatThreads
+})
+@ContextConfiguration(classes = {IngestRestController.class, InndataAPI.class})
+@ActiveProfiles("unittest")
+public class AsyncConcurrencyTest {
+
+    static final int tomcatThreads = 4;
+    private static final int concurrentRequests = tomcatThreads * 10;
+
+    @MockBean
+    private IngestService ingestService;
+
+    @MockBean
+    public JwtDecoder jwtDecoder;
+
+    @LocalServerPort
+    private int port;
+
+    @Test
+    public void whenMoreRequestsThanRequestThreadsAreWaitingForBackendThenAllAreServed() throws Exception {
+        CompletableFuture<TimeSeriesPoint> backend = new CompletableFuture<>();
+        AtomicInteger arrived = new AtomicInteger();
+        when(ingestService.lastAsync(any(TimeSeriesDefinition.class))).thenAnswer(invocation -> {
+            if (arrived.incrementAndGet() == concurrentRequests)
+                backend.complete(TimeSeriesPoint.builder()
+                        .timestamp(ZonedDateTime.of(2016, 3, 3, 20, 12, 0, 0, ZoneId.of("UTC")))
+                        .measurement("antall", 2)
+                        .build());
+            return backend;
+        });
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < concurrentRequests; i++)
+            responses.add(client.sendAsync(
+                    HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/991825827/aTimeSeries/minutes/last")).build(),
+                    HttpResponse.BodyHandlers.ofString()
+            ));
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        assertEquals(concurrentRequests, arrived.get());
+        for (CompletableFuture<HttpResponse<String>> response : responses)
+            assertEquals(200, response.join().statusCode());
+    }
+
+}
@@ -0,0 +1,128 @@
+package no.difi.statistics.ingest.api;
+
+import no.difi.statistics.IngestService;
+import no.difi.statistics.api.IngestJob;
+import no.difi.statistics.api.IngestJobs;
+import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.api.IngestStatusCollector;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IngestJobsTest {
+
+    private final TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("aTimeSeries").minutes().owner("991825827");
+    private final IngestService ingestService = mock(IngestService.class);
+    private final CompletableFuture<Void> release = new CompletableFuture<>();
+    private IngestJobs ingestJobs;
+
+    @AfterEach
+    public void close() {
+        release.complete(null);
+        if (ingestJobs != null)
+            ingestJobs.close();
+    }
+
+    @Test
+    public void whenJobIsDoneThenItHoldsASummaryOfTheStatuses() throws Exception {
+        release.complete(null);
+        ingestJobs = new IngestJobs(ingestService(), 10, Duration.ofHours(1), 1, 10, 1000);
+        IngestJob job = ingestJobs.submit(seriesDefinition, points(3));
+        awaitState(job, IngestJob.State.Done);
+        assertEquals(3, job.getResponse().getTotal());
+        assertEquals(3, job.getResponse().getOk());
+        assertEquals(job, ingestJobs.get(seriesDefinition, job.getId()));
+    }
+
+    @Test
+    public void whenJobsAreWaitingForAllThreadsAndTheQueueIsFullThenNewJobsAreRejected() throws Exception {
+        ingestJobs = new IngestJobs(ingestService(), 10, Duration.ofHours(1), 1, 1, 1000);
+        IngestJob running = ingestJobs.submit(seriesDefinition, points(1));
+        awaitState(running, IngestJob.State.Running);
+        ingestJobs.submit(seriesDefinition, points(1));
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> ingestJobs.submit(seriesDefinition, points(1)));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        release.complete(null);
+        awaitState(running, IngestJob.State.Done);
+    }
+
+    @Test
+    public void whenTooManyPointsArePendingThenNewJobsAreRejectedUntilPendingJobsAreDone() throws Exception {
+        ingestJobs = new IngestJobs(ingestService(), 10, Duration.ofHours(1), 1, 10, 10);
+        IngestJob first = ingestJobs.submit(seriesDefinition, points(6));
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> ingestJobs.submit(seriesDefinition, points(5)));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+        ingestJobs.submit(seriesDefinition, points(4));
+        release.complete(null);
+        awaitState(first, IngestJob.State.Done);
+        long deadline = System.currentTimeMillis() + 10_000;
+        IngestJob accepted = null;
+        while (accepted == null && System.currentTimeMillis() < deadline) {
+            try {
+                accepted = ingestJobs.submit(seriesDefinition, points(10));
+            } catch (ResponseStatusException stillPending) {
+                Thread.sleep(10);
+            }
+        }
+        assertNotNull(accepted);
+    }
+
+    @Test
+    public void whenJobHasMorePointsThanMayBePendingThenItIsRejectedAsTooLarge() {
+        ingestJobs = new IngestJobs(ingestService(), 10, Duration.ofHours(1), 1, 10, 10);
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> ingestJobs.submit(seriesDefinition, points(11)));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, e.getStatus());
+    }
+
+    /**
+     * @return an ingest service storing every point once the release future is completed
+     */
+    @SuppressWarnings("unchecked")
+    private IngestService ingestService() {
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class), any(IngestStatusCollector.class))).thenAnswer(invocation -> {
+            release.join();
+            IngestStatusCollector<?> collector = invocation.getArgument(2);
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> collector.status(IngestResponse.Status.Ok));
+            return completedFuture(collector.build());
+        });
+        return ingestService;
+    }
+
+    private static List<TimeSeriesPoint> points(int count) {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            points.add(TimeSeriesPoint.builder()
+                    .measurement("antall", 2)
+                    .timestamp(ZonedDateTime.of(2016, 3, 3, 20, i, 0, 0, ZoneId.of("UTC")))
+                    .build());
+        return Collections.unmodifiableList(points);
+    }
+
+    private static void awaitState(IngestJob job, IngestJob.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (job.getState() != state && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(state, job.getState());
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.difi.statistics.ingest.api;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IngestMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void whenMoreOwnersThanAllowedAreSeenThenTheRestAreTaggedAsOther() {
+        IngestMetrics metrics = new IngestMetrics(registry, 2);
+        for (String owner : List.of("111111111", "222222222", "333333333", "111111111"))
+            metrics.received(seriesDefinition(owner), 1, 10);
+        assertEquals(Set.of("111111111", "222222222", "other"), owners());
+        assertEquals(2, registry.get("statistics.ingest.points").tag("owner", "111111111").counter().count());
+        assertEquals(1, registry.get("statistics.ingest.points").tag("owner", "other").counter().count());
+    }
+
+    @Test
+    public void whenNewOwnersAreSeenConcurrentlyThenNoMoreThanTheMaximumAreTagged() throws Exception {
+        int maxOwners = 10;
+        int threads = 16;
+        IngestMetrics metrics = new IngestMetrics(registry, maxOwners);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 100; i++)
+                        metrics.received(seriesDefinition(String.format("%09d", thread * 100 + i)), 1, 0);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results)
+                result.get(10, SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        Set<String> owners = owners();
+        assertTrue(owners.contains("other"));
+        assertEquals(maxOwners + 1, owners.size(), owners.toString());
+        double points = registry.get("statistics.ingest.points").counters().stream().mapToDouble(Counter::count).sum();
+        assertEquals(threads * 100, points);
+    }
+
+    private Set<String> owners() {
+        return registry.get("statistics.ingest.points").counters().stream()
+                .map(counter -> counter.getId().getTag("owner"))
+                .collect(Collectors.toSet());
+    }
+
+    private static TimeSeriesDefinition seriesDefinition(String owner) {
+        return TimeSeriesDefinition.builder().name("aTimeSeries").minutes().owner(owner);
+    }
+
+}
@@ -3,12 +3,17 @@ package no.difi.statistics.ingest.api;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import no.difi.statistics.IngestService;
 import no.difi.statistics.InndataAPI;
+import no.difi.statistics.api.IngestResponse;
 import no.difi.statistics.api.IngestRestController;
+import no.difi.statistics.api.IngestStatusCollector;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
@@ -21,29 +26,52 @@ import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static no.difi.statistics.api.IngestResponse.Status.Conflict;
+import static no.difi.statistics.api.IngestResponse.Status.Failed;
+import static no.difi.statistics.api.IngestResponse.Status.Ok;
 import static no.difi.statistics.model.MeasurementDistance.minutes;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpHeaders.AUTHORIZATION;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {"management.endpoints.enabled-by-default = false", "spring.autoconfigure.exclude = org.springframework.boot.autoconfigure.elasticsearch.ElasticsearchRestClientAutoConfiguration"})
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = {
+        "management.endpoints.enabled-by-default = false",
+        "spring.autoconfigure.exclude = org.springframework.boot.autoconfigure.elasticsearch.ElasticsearchRestClientAutoConfiguration",
+        "no.difi.statistics.ingest.backfill.enabled = true",
+        "no.difi.statistics.ingest.server-timing.enabled = true"
+})
 @ContextConfiguration(classes = {IngestRestController.class, InndataAPI.class})
 @AutoConfigureMockMvc
 @ActiveProfiles("unittest")
@@ -52,6 +80,7 @@ public class IngestRestControllerTest {
     static final String PREFIX = "digdir";
     static final String SUBSCOPE = "statistikk.skriv";
     final String SCOPE = PREFIX + ":" + SUBSCOPE;
+    final String ADMIN_SCOPE = PREFIX + ":statistikk.admin";
     static final String OWNER = "991825827";
 
 
@@ -64,6 +93,19 @@ public class IngestRestControllerTest {
     @MockBean
     public JwtDecoder jwtDecoder;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void stubIngestService() {
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class))).thenAnswer(invocation -> {
+            IngestResponse.Builder response = IngestResponse.builder();
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> response.status(IngestResponse.Status.Ok));
+            return completedFuture(response.build());
+        });
+        when(ingestService.lastAsync(any(TimeSeriesDefinition.class))).thenReturn(completedFuture(null));
+    }
+
     @AfterEach
     public void resetMocks() {
         reset(jwtDecoder);
@@ -96,7 +138,12 @@ public class IngestRestControllerTest {
         final String orgno = "984936923";
         when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(orgno, SCOPE));
         TimeSeriesPoint timeSeriesPoint = aPoint();
-        mockMvc.perform(
+        List<TimeSeriesPoint> receivedPoints = new ArrayList<>();
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class))).thenAnswer(invocation -> {
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(receivedPoints::add);
+            return completedFuture(IngestResponse.builder().status(IngestResponse.Status.Ok).build());
+        });
+        perform(
                 request()
                         .content(json(singletonList(timeSeriesPoint)))
                         .owner(orgno)
@@ -104,16 +151,17 @@ public class IngestRestControllerTest {
                         .ingest()
         )
                 .andExpect(status().is(HttpStatus.OK.value()));
-        verify(ingestService).ingest(
+        verify(ingestService).ingestAsync(
                 eq(TimeSeriesDefinition.builder().name("aTimeSeries").distance(minutes).owner(orgno)),
-                eq(singletonList(timeSeriesPoint))
+                any(Iterator.class)
         );
+        assertEquals(singletonList(timeSeriesPoint), receivedPoints);
     }
 
     @Test
     public void whenSendingValidMinuteRequestThenExpectNormalResponse() throws Exception {
         when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
-        mockMvc.perform(
+        perform(
                 request()
                         .content(json(singletonList(aPoint())))
                         .distance("minutes")
@@ -135,6 +183,186 @@ public class IngestRestControllerTest {
                 .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
     }
 
+    @Test
+    public void whenSendingPointWithoutTimestampThenExpect400Response() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class))).thenAnswer(invocation -> {
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> {});
+            return completedFuture(IngestResponse.builder().build());
+        });
+        mockMvc.perform(
+                request()
+                        .content("[{\"measurements\":{\"antall\":2}}]")
+                        .distance("minutes")
+                        .ingest()
+        )
+                .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    @Test
+    public void whenIngestingAsynchronouslyThenJobIsAcceptedAndCompletesWithStatuses() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        List<TimeSeriesPoint> receivedPoints = new ArrayList<>();
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class), any(IngestStatusCollector.class))).thenAnswer(invocation -> {
+            IngestStatusCollector<?> collector = invocation.getArgument(2);
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> {
+                receivedPoints.add(point);
+                collector.status(Ok);
+            });
+            return completedFuture(collector.build());
+        });
+        String location = perform(request().content(json(asList(aPoint(), aPoint()))).distance("minutes").ingest().param("async", "true"))
+                .andExpect(status().is(HttpStatus.ACCEPTED.value()))
+                .andExpect(jsonPath("$.id").exists())
+                .andReturn().getResponse().getHeader("Location");
+        for (int i = 0; i < 50 && !mockMvc.perform(get(location).header(AUTHORIZATION, "Bearer token")).andReturn().getResponse().getContentAsString().contains("Done"); i++)
+            Thread.sleep(100);
+        mockMvc.perform(get(location).header(AUTHORIZATION, "Bearer token"))
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(jsonPath("$.state").value("Done"))
+                .andExpect(jsonPath("$.response.total").value(2))
+                .andExpect(jsonPath("$.response.ok").value(2));
+        verify(ingestService).ingestAsync(eq(TimeSeriesDefinition.builder().name("aTimeSeries").distance(minutes).owner(OWNER)), any(Iterator.class), any(IngestStatusCollector.class));
+        assertEquals(asList(aPoint(), aPoint()), receivedPoints);
+    }
+
+    @Test
+    public void whenRequestingUnknownJobThenExpect404Response() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        mockMvc.perform(get("/{owner}/{seriesName}/{distance}/jobs/{id}", OWNER, "aTimeSeries", "minutes", "unknown").header(AUTHORIZATION, "Bearer token"))
+                .andExpect(status().is(HttpStatus.NOT_FOUND.value()));
+    }
+
+    @Test
+    public void whenIngestingThenPointsAreCountedPerOwnerAndDistanceAndStagesAreTimed() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        double points = received("statistics.ingest.points", "days");
+        double bytes = received("statistics.ingest.bytes", "days");
+        long parsed = meterRegistry.get("statistics.ingest.parse").timer().count();
+        long responded = meterRegistry.get("statistics.ingest.respond").timer().count();
+        perform(request().content(json(asList(aPoint(), aPoint()))).distance("days").ingest())
+                .andExpect(status().is(HttpStatus.OK.value()));
+        assertEquals(points + 2, received("statistics.ingest.points", "days"));
+        assertTrue(received("statistics.ingest.bytes", "days") > bytes);
+        assertEquals(parsed + 1, meterRegistry.get("statistics.ingest.parse").timer().count());
+        assertEquals(responded + 1, meterRegistry.get("statistics.ingest.respond").timer().count());
+    }
+
+    @Test
+    public void whenServerTimingIsEnabledThenResponseHasServerTimingHeader() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        perform(request().content(json(singletonList(aPoint()))).distance("minutes").ingest())
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(header().string("Server-Timing", allOf(
+                        containsString("parse;dur="),
+                        containsString("auth;dur="),
+                        containsString("es;dur="),
+                        containsString("respond;dur=")
+                )));
+    }
+
+    private double received(String name, String distance) {
+        Counter counter = meterRegistry.find(name).tag("owner", OWNER).tag("distance", distance).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    @Test
+    public void whenIngestingNdjsonThenStatusLineIsReturnedForChunk() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        mockMvc.perform(request().content(json(aPoint()) + "\n\n" + json(aPoint()) + "\n").distance("minutes").ingestNdjson())
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(content().string("{\"chunk\":0,\"offset\":0,\"statuses\":[\"Ok\",\"Ok\"]}\n"));
+    }
+
+    @Test
+    public void whenIngestingNdjsonWithInvalidLineThenPointsBeforeItAreIngestedAndErrorLineIsReturned() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        mockMvc.perform(request().content(json(aPoint()) + "\n{\"measurements\":{\"antall\":2}}\n" + json(aPoint())).distance("minutes").ingestNdjson())
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(content().string(
+                        "{\"chunk\":0,\"offset\":0,\"statuses\":[\"Ok\"]}\n" +
+                        "{\"line\":2,\"error\":\"Point is missing timestamp\"}\n"
+                ));
+    }
+
+    @Test
+    public void whenAskingForSummaryThenCountsAndRangesOfPointsNotStoredAreReturned() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class), any(IngestStatusCollector.class))).thenAnswer(invocation -> {
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> {});
+            IngestStatusCollector<?> collector = invocation.getArgument(2);
+            for (IngestResponse.Status status : asList(Ok, Failed, Failed, Ok, Conflict, Ok))
+                collector.status(status);
+            return completedFuture(collector.build());
+        });
+        perform(request().content(json(singletonList(aPoint()))).distance("minutes").ingest().param("summary", "true"))
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(jsonPath("$.total").value(6))
+                .andExpect(jsonPath("$.ok").value(3))
+                .andExpect(jsonPath("$.failed").value(2))
+                .andExpect(jsonPath("$.conflict").value(1))
+                .andExpect(jsonPath("$.notOk", hasSize(2)))
+                .andExpect(jsonPath("$.notOk[0].from").value(1))
+                .andExpect(jsonPath("$.notOk[0].count").value(2))
+                .andExpect(jsonPath("$.notOk[0].status").value("Failed"))
+                .andExpect(jsonPath("$.notOk[1].from").value(4))
+                .andExpect(jsonPath("$.notOk[1].count").value(1))
+                .andExpect(jsonPath("$.notOk[1].status").value("Conflict"))
+                .andExpect(jsonPath("$.statuses").doesNotExist());
+    }
+
+    @Test
+    public void whenBackfillingThenSummaryIsReturnedPerChunkAndBackfillIsClosed() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, ADMIN_SCOPE));
+        IngestService.Backfill backfill = mock(IngestService.Backfill.class);
+        when(ingestService.backfill(any(TimeSeriesDefinition.class))).thenReturn(backfill);
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class), any(IngestStatusCollector.class))).thenAnswer(invocation -> {
+            IngestStatusCollector<?> collector = invocation.getArgument(2);
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> collector.status(Ok));
+            return completedFuture(collector.build());
+        });
+        perform(post("/{owner}/{seriesName}/{distance}/backfill", OWNER, "aTimeSeries", "minutes")
+                .contentType("application/x-ndjson")
+                .header(AUTHORIZATION, "Bearer token")
+                .content(json(aPoint()) + "\n" + json(aPoint()) + "\n"))
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(content().string(containsString("{\"chunk\":0,\"offset\":0,\"summary\":{\"total\":2,\"ok\":2")));
+        verify(backfill).close();
+    }
+
+    @Test
+    public void whenSeriesIsAlreadyBeingBackfilledThenExpect409() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, ADMIN_SCOPE));
+        when(ingestService.backfill(any(TimeSeriesDefinition.class))).thenThrow(new IllegalStateException("Already being backfilled"));
+        perform(post("/{owner}/{seriesName}/{distance}/backfill", OWNER, "aTimeSeries", "minutes")
+                .contentType("application/x-ndjson")
+                .header(AUTHORIZATION, "Bearer token")
+                .content(json(aPoint()) + "\n"))
+                .andExpect(status().is(HttpStatus.CONFLICT.value()));
+    }
+
+    @Test
+    public void whenBackfillingWithoutAdminScopeThenExpect403() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
+        perform(post("/{owner}/{seriesName}/{distance}/backfill", OWNER, "aTimeSeries", "minutes")
+                .contentType("application/x-ndjson")
+                .header(AUTHORIZATION, "Bearer token")
+                .content(json(aPoint()) + "\n"))
+                .andExpect(status().is(HttpStatus.FORBIDDEN.value()));
+        verify(ingestService, never()).backfill(any(TimeSeriesDefinition.class));
+    }
+
+    @Test
+    public void whenBackfillIsNotSupportedThenExpect404() throws Exception {
+        when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, ADMIN_SCOPE));
+        when(ingestService.backfill(any(TimeSeriesDefinition.class))).thenThrow(new UnsupportedOperationException("Backfill is not supported with a journal"));
+        perform(post("/{owner}/{seriesName}/{distance}/backfill", OWNER, "aTimeSeries", "minutes")
+                .contentType("application/x-ndjson")
+                .header(AUTHORIZATION, "Bearer token")
+                .content(json(aPoint()) + "\n"))
+                .andExpect(status().is(HttpStatus.NOT_FOUND.value()));
+    }
+
     @Test
     public void whenSendingRequestWithWrongPasswordThenExpect403Response() throws Exception {
         final String notOwnerOrgNo = "975700844";
@@ -150,29 +378,67 @@ public class IngestRestControllerTest {
 
     @Test
     public void whenRequestingLastPointInASeriesThenNoAuthenticationIsRequired() throws Exception {
-        when(ingestService.last(any(TimeSeriesDefinition.class))).thenReturn(aPoint());
-        mockMvc.perform(request().distance("minutes").last())
+        when(ingestService.lastAsync(any(TimeSeriesDefinition.class))).thenReturn(completedFuture(aPoint()));
+        perform(request().distance("minutes").last())
                 .andExpect(status().is(HttpStatus.OK.value()));
     }
 
     @Test
     public void whenRequestingLastPointInEmptySeriesThenExpectEmptyResponse() throws Exception {
-        mockMvc.perform(request().distance("minutes").last())
+        perform(request().distance("minutes").last())
                 .andExpect(status().is(HttpStatus.NO_CONTENT.value()))
                 .andExpect(MockMvcResultMatchers.content().string(""));
     }
 
+    @Test
+    public void whenRequestingLastPointOfSeveralSeriesThenSeriesWithPointsAreReturnedWithoutAuthentication() throws Exception {
+        TimeSeriesDefinition seriesWithPoints = TimeSeriesDefinition.builder().name("aTimeSeries").minutes().owner(OWNER);
+        TimeSeriesDefinition emptySeries = TimeSeriesDefinition.builder().name("anotherTimeSeries").hours().owner(OWNER);
+        Map<TimeSeriesDefinition, TimeSeriesPoint> lastPoints = new LinkedHashMap<>();
+        lastPoints.put(seriesWithPoints, aPoint());
+        lastPoints.put(emptySeries, null);
+        when(ingestService.lastAsync(anyList())).thenReturn(completedFuture(lastPoints));
+        perform(post("/last")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[{\"owner\":\"" + OWNER + "\",\"name\":\"aTimeSeries\",\"distance\":\"minutes\"}," +
+                        "{\"owner\":\"" + OWNER + "\",\"name\":\"anotherTimeSeries\",\"distance\":\"hours\"}]"))
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(jsonPath("$['" + OWNER + "@aTimeSeries@minutes'].timestamp").exists())
+                .andExpect(jsonPath("$['" + OWNER + "@anotherTimeSeries@hours']").doesNotExist());
+        verify(ingestService).lastAsync(asList(seriesWithPoints, emptySeries));
+    }
+
+    @Test
+    public void whenRequestingLastPointOfMoreSeriesThanAllowedThenExpect413() throws Exception {
+        StringBuilder content = new StringBuilder("[");
+        for (int i = 0; i <= 100; i++)
+            content.append(i == 0 ? "" : ",").append("{\"owner\":\"" + OWNER + "\",\"name\":\"series" + i + "\",\"distance\":\"minutes\"}");
+        perform(post("/last")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(content.append("]").toString()))
+                .andExpect(status().is(HttpStatus.PAYLOAD_TOO_LARGE.value()));
+        verify(ingestService, never()).lastAsync(anyList());
+    }
+
+    @Test
+    public void whenRequestingLastPointOfSeriesWithoutNameThenExpect400() throws Exception {
+        perform(post("/last")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[{\"owner\":\"" + OWNER + "\",\"distance\":\"minutes\"}]"))
+                .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+    }
+
     @Test
     public void whenSendingValidHourRequestThenExpectNormalResponse() throws Exception {
         when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
-        mockMvc.perform(request().content(json(singletonList(aPoint()))).distance("hours").ingest())
+        perform(request().content(json(singletonList(aPoint()))).distance("hours").ingest())
                 .andExpect(status().is(HttpStatus.OK.value()));
     }
 
     @Test
     public void whenBulkIngestingTwoPointThenExpectOkResponse() throws Exception {
         when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
-        mockMvc.perform(request().content(json(asList(aPoint(), aPoint()))).distance("hours").ingest())
+        perform(request().content(json(asList(aPoint(), aPoint()))).distance("hours").ingest())
                 .andExpect(status().is(HttpStatus.OK.value()));
     }
 
@@ -183,6 +449,15 @@ public class IngestRestControllerTest {
                 .andExpect(status().is(HttpStatus.FORBIDDEN.value()));
     }
 
+    /**
+     * Performs the request, and dispatches the result if the controller handled it asynchronously.
+     */
+    private ResultActions perform(MockHttpServletRequestBuilder requestBuilder) throws Exception {
+        ResultActions actions = mockMvc.perform(requestBuilder);
+        MvcResult result = actions.andReturn();
+        return result.getRequest().isAsyncStarted() ? mockMvc.perform(asyncDispatch(result)) : actions;
+    }
+
     private TimeSeriesPoint aPoint() {
         return TimeSeriesPoint.builder()
                 .measurement("antall", 2)
@@ -229,6 +504,13 @@ public class IngestRestControllerTest {
                     .content(content);
         }
 
+        MockHttpServletRequestBuilder ingestNdjson() {
+            return post("/{owner}/{seriesName}/{distance}", owner, series, distance)
+                    .contentType("application/x-ndjson")
+                    .header(AUTHORIZATION, "Bearer token")
+                    .content(content);
+        }
+
         MockHttpServletRequestBuilder last() {
             return get("/{owner}/{seriesName}/{distance}/last", owner, series, distance);
         }
@@ -0,0 +1,71 @@
+package no.difi.statistics.ingest.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.IngestService;
+import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.api.NdjsonIngester;
+import no.difi.statistics.api.RateLimiter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NdjsonIngesterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule()).registerModule(new Jdk8Module());
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void whenOwnerExceedsRateLimitDuringUploadThenUploadIsCutOffWithErrorStatusLine() throws Exception {
+        IngestService ingestService = mock(IngestService.class);
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class))).thenAnswer(invocation -> {
+            IngestResponse.Builder response = IngestResponse.builder();
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> response.status(IngestResponse.Status.Ok));
+            return completedFuture(response.build());
+        });
+        // Ten points per second with a burst of ten: the first chunk empties the bucket and the second puts it in debt
+        RateLimiter rateLimiter = new RateLimiter(
+                new MockEnvironment().withProperty("no.difi.statistics.ingest.rate-limit.points-per-second", "10"),
+                meterRegistry
+        );
+        NdjsonIngester ingester = new NdjsonIngester(ingestService, rateLimiter, objectMapper, new IngestMetrics(meterRegistry, 100), 10, 50000);
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            ndjson.append("{\"timestamp\":\"2016-03-03T20:12:13Z\",\"measurements\":{\"antall\":").append(i).append("}}\n");
+        ByteArrayInputStream body = new ByteArrayInputStream(ndjson.toString().getBytes(UTF_8));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        ingester.ingest(TimeSeriesDefinition.builder().name("aTimeSeries").minutes().owner("991825827"), body, true, output);
+
+        String[] lines = output.toString(UTF_8).split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(10, objectMapper.readTree(lines[0]).get("statuses").size());
+        assertEquals(10, objectMapper.readTree(lines[1]).get("statuses").size());
+        JsonNode rejected = objectMapper.readTree(lines[2]);
+        assertEquals(2, rejected.get("chunk").asInt());
+        assertEquals(20, rejected.get("offset").asLong());
+        assertTrue(rejected.get("error").asText().startsWith("Rate limit exceeded for 991825827"), rejected.toString());
+        verify(ingestService, times(2)).ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class));
+        assertTrue(body.available() > 0, "Expected the rest of the body to be left unread");
+    }
+
+}
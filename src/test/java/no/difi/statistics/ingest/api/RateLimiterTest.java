@@ -0,0 +1,93 @@
+package no.difi.statistics.ingest.api;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.api.RateLimiter;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void whenNoLimitsAreConfiguredThenRequestsAreAdmitted() {
+        RateLimiter rateLimiter = new RateLimiter(new MockEnvironment(), meterRegistry);
+        for (int i = 0; i < 100; i++) {
+            rateLimiter.admit("991825827", 1_000_000);
+            rateLimiter.charge("991825827", 1_000_000, 0);
+        }
+    }
+
+    @Test
+    public void whenOwnerIsInDebtForPointsThenRequestIsRejectedWithRetryAfter() {
+        RateLimiter rateLimiter = new RateLimiter(
+                new MockEnvironment().withProperty("no.difi.statistics.ingest.rate-limit.points-per-second", "10"),
+                meterRegistry
+        );
+        rateLimiter.admit("991825827", -1);
+        rateLimiter.charge("991825827", 50, 0);
+        RateLimiter.RateLimitExceeded e = assertThrows(RateLimiter.RateLimitExceeded.class, () -> rateLimiter.admit("991825827", -1));
+        assertTrue(e.getRetryAfterSeconds() >= 4 && e.getRetryAfterSeconds() <= 5);
+        assertDoesNotThrow(() -> rateLimiter.admit("984936923", -1));
+        assertEquals(1, meterRegistry.get("statistics.ingest.rate.limit.rejections").tag("owner", "991825827").counter().count());
+    }
+
+    @Test
+    public void whenOwnerHasOwnLimitThenItOverridesDefaultLimit() {
+        RateLimiter rateLimiter = new RateLimiter(
+                new MockEnvironment()
+                        .withProperty("no.difi.statistics.ingest.rate-limit.bytes-per-second", "1000")
+                        .withProperty("no.difi.statistics.ingest.rate-limit.owners.991825827.bytes-per-second", "100000"),
+                meterRegistry
+        );
+        rateLimiter.admit("991825827", 50_000);
+        rateLimiter.admit("984936923", 1000);
+        assertThrows(RateLimiter.RateLimitExceeded.class, () -> rateLimiter.admit("984936923", 1000));
+    }
+
+    @Test
+    public void whenOwnerHasBeenIdleWithBucketsRefilledThenBucketsAndMetersAreRemoved() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(
+                new MockEnvironment()
+                        .withProperty("no.difi.statistics.ingest.rate-limit.points-per-second", "10")
+                        .withProperty("no.difi.statistics.ingest.rate-limit.idle-seconds", "0.05"),
+                meterRegistry
+        );
+        rateLimiter.admit("991825827", -1);
+        rateLimiter.admit("984936923", -1);
+        rateLimiter.charge("984936923", 50, 0);
+        assertNotNull(meterRegistry.find("statistics.ingest.rate.limit.available").tag("owner", "991825827").gauge());
+        Thread.sleep(100);
+        rateLimiter.admit("974760673", -1);
+        assertNull(meterRegistry.find("statistics.ingest.rate.limit.available").tag("owner", "991825827").gauge());
+        assertNull(meterRegistry.find("statistics.ingest.rate.limit.rejections").tag("owner", "991825827").counter());
+        // An owner in debt is kept, or the debt would be forgiven
+        assertNotNull(meterRegistry.find("statistics.ingest.rate.limit.available").tag("owner", "984936923").gauge());
+        assertThrows(RateLimiter.RateLimitExceeded.class, () -> rateLimiter.admit("984936923", -1));
+    }
+
+    @Test
+    public void whenMaxOwnersAreTaggedThenRejectionsOfOtherOwnersAreCountedAsOther() {
+        RateLimiter rateLimiter = new RateLimiter(
+                new MockEnvironment()
+                        .withProperty("no.difi.statistics.ingest.rate-limit.points-per-second", "10")
+                        .withProperty("no.difi.statistics.ingest.metrics.max-owners", "1"),
+                meterRegistry
+        );
+        rateLimiter.charge("991825827", 50, 0);
+        rateLimiter.charge("984936923", 50, 0);
+        assertThrows(RateLimiter.RateLimitExceeded.class, () -> rateLimiter.admit("991825827", -1));
+        assertThrows(RateLimiter.RateLimitExceeded.class, () -> rateLimiter.admit("984936923", -1));
+        assertEquals(1, meterRegistry.get("statistics.ingest.rate.limit.rejections").tag("owner", "991825827").counter().count());
+        assertEquals(1, meterRegistry.get("statistics.ingest.rate.limit.rejections").tag("owner", "other").counter().count());
+        assertNull(meterRegistry.find("statistics.ingest.rate.limit.available").tag("owner", "984936923").gauge());
+    }
+
+}
@@ -0,0 +1,132 @@
+package no.difi.statistics.ingest.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.IngestMetrics;
+import no.difi.statistics.IngestService;
+import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.api.NdjsonIngester;
+import no.difi.statistics.api.RateLimiter;
+import no.difi.statistics.api.RequestDecompressionFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RequestDecompressionFilterTest {
+
+    private final byte[] body = "[{\"timestamp\":\"2016-03-03T20:12:13Z\",\"measurements\":{\"antall\":2}}]".getBytes(UTF_8);
+
+    @Test
+    public void whenBodyIsGzippedThenItIsDecompressed() throws Exception {
+        MockFilterChain chain = new MockFilterChain();
+        new RequestDecompressionFilter(1024).doFilter(request("gzip", gzip(body)), new MockHttpServletResponse(), chain);
+        HttpServletRequest request = (HttpServletRequest) chain.getRequest();
+        assertArrayEquals(body, request.getInputStream().readAllBytes());
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals(-1, request.getContentLengthLong());
+    }
+
+    @Test
+    public void whenBodyIsDeflatedThenItIsDecompressed() throws Exception {
+        MockFilterChain chain = new MockFilterChain();
+        new RequestDecompressionFilter(1024).doFilter(request("deflate", deflate(body)), new MockHttpServletResponse(), chain);
+        assertArrayEquals(body, chain.getRequest().getInputStream().readAllBytes());
+    }
+
+    @Test
+    public void whenDecompressedBodyExceedsLimitThenReadingFailsWith413() throws Exception {
+        MockFilterChain chain = new MockFilterChain();
+        new RequestDecompressionFilter(1024).doFilter(request("gzip", gzip(new byte[1_000_000])), new MockHttpServletResponse(), chain);
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> chain.getRequest().getInputStream().readAllBytes());
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, e.getStatus());
+    }
+
+    @Test
+    public void whenDecompressedNdjsonBodyExceedsLimitThenIngestEndsWithErrorLineAfterPointsRead() throws Exception {
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            ndjson.append("{\"timestamp\":\"2016-03-03T20:12:13Z\",\"measurements\":{\"antall\":").append(i).append("}}\n");
+        MockFilterChain chain = new MockFilterChain();
+        new RequestDecompressionFilter(20_000).doFilter(request("gzip", gzip(ndjson.toString().getBytes(UTF_8))), new MockHttpServletResponse(), chain);
+        IngestService ingestService = mock(IngestService.class);
+        when(ingestService.ingestAsync(any(TimeSeriesDefinition.class), any(Iterator.class))).thenAnswer(invocation -> {
+            IngestResponse.Builder response = IngestResponse.builder();
+            invocation.<Iterator<TimeSeriesPoint>>getArgument(1).forEachRemaining(point -> response.status(IngestResponse.Status.Ok));
+            return completedFuture(response.build());
+        });
+        ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule()).registerModule(new Jdk8Module());
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        NdjsonIngester ingester = new NdjsonIngester(ingestService, new RateLimiter(new MockEnvironment(), meterRegistry), objectMapper,
+                new IngestMetrics(meterRegistry, 100), 1000, 50000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        ingester.ingest(TimeSeriesDefinition.builder().name("aTimeSeries").minutes().owner("991825827"), chain.getRequest().getInputStream(), true, output);
+
+        String[] lines = output.toString(UTF_8).split("\n");
+        int pointsRead = 0;
+        for (int i = 0; i < lines.length - 1; i++)
+            pointsRead += objectMapper.readTree(lines[i]).get("statuses").size();
+        assertTrue(pointsRead > 0 && pointsRead < 1000);
+        JsonNode error = objectMapper.readTree(lines[lines.length - 1]);
+        assertEquals(pointsRead + 1, error.get("line").asInt());
+        assertEquals("Decompressed body is larger than 20000 bytes", error.get("error").asText());
+    }
+
+    @Test
+    public void whenEncodingIsUnsupportedThenExpect415() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        new RequestDecompressionFilter(1024).doFilter(request("br", body), response, new MockFilterChain());
+        assertEquals(HttpStatus.UNSUPPORTED_MEDIA_TYPE.value(), response.getStatus());
+    }
+
+    private static MockHttpServletRequest request(String encoding, byte[] content) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/991825827/aTimeSeries/minutes");
+        request.addHeader("Content-Encoding", encoding);
+        request.setContent(content);
+        return request;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+}
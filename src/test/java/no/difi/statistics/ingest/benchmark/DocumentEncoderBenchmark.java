@@ -0,0 +1,88 @@
+package no.difi.statistics.ingest.benchmark;
+
+import no.difi.statistics.elasticsearch.DocumentEncoder;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Compares the {@link DocumentEncoder}s for each supported content type with the <code>XContentBuilder</code> based
+ * encoding they replaced, for a typical minute series point. Run the main method (from the IDE, or with the test
+ * classpath) to get the document sizes, time per operation and, from the GC profiler, allocated bytes per operation
+ * (<code>gc.alloc.rate.norm</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentEncoderBenchmark {
+
+    private static final ZonedDateTime timestamp = ZonedDateTime.of(2021, 3, 3, 12, 34, 0, 0, ZoneOffset.UTC);
+    private static final TimeSeriesPoint point = TimeSeriesPoint.builder()
+            .timestamp(timestamp)
+            .category("tjeneste", "idporten")
+            .category("niva", "substansiell")
+            .measurement("antall", 1234L)
+            .measurement("feil", 12L)
+            .measurement("minid", 431L)
+            .measurement("bankid", 765L)
+            .measurement("buypass", 26L)
+            .build();
+
+    @Param({"JSON", "SMILE"})
+    public XContentType contentType;
+    private DocumentEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        encoder = DocumentEncoder.forContentType(contentType);
+    }
+
+    @Benchmark
+    public byte[] documentEncoder() {
+        return encoder.encode(point, timestamp);
+    }
+
+    @Benchmark
+    public byte[] xContentBuilder() throws IOException {
+        return xContentBuilder(point);
+    }
+
+    private static byte[] xContentBuilder(TimeSeriesPoint point) throws IOException {
+        XContentBuilder builder = jsonBuilder().startObject();
+        builder.field("timestamp", timestamp.toString());
+        for (var category : point.getCategories().orElseThrow().entrySet())
+            builder.field("category." + category.getKey(), (Object) category.getValue());
+        for (var measurement : point.getMeasurements().entrySet())
+            builder.field(measurement.getKey(), (Object) measurement.getValue());
+        return BytesReference.toBytes(BytesReference.bytes(builder.endObject()));
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        System.out.printf("Document size: XContentBuilder %d bytes, JSON %d bytes, SMILE %d bytes%n",
+                xContentBuilder(point).length,
+                DocumentEncoder.forContentType(XContentType.JSON).encode(point, timestamp).length,
+                DocumentEncoder.forContentType(XContentType.SMILE).encode(point, timestamp).length);
+        new Runner(new OptionsBuilder()
+                .include(DocumentEncoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()
+        ).run();
+    }
+
+}
@@ -0,0 +1,91 @@
+package no.difi.statistics.ingest.benchmark;
+
+import no.difi.statistics.elasticsearch.DocumentEncoder;
+import no.difi.statistics.elasticsearch.IndexTemplate;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.xcontent.XContentType;
+import org.testcontainers.elasticsearch.ElasticsearchContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+/**
+ * Measures bulk throughput into new indices with dynamic mapping, and with the mapping given by {@link IndexTemplate},
+ * against Elasticsearch in a container. Every series has its own measurement ids and categories, so with dynamic
+ * mapping every series causes mapping updates of the cluster state while it is being written. Run the main method
+ * (from the IDE, or with the test classpath) with Docker available.
+ */
+public class IndexTemplateThroughputBenchmark {
+
+    private static final int series = 200;
+    private static final int pointsPerSeries = 2_000;
+    private static final int measurementsPerPoint = 5;
+    private static final int bulkSize = 1_000;
+    private static final ZonedDateTime start = ZonedDateTime.of(2021, 3, 3, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    public static void main(String[] args) throws IOException {
+        try (ElasticsearchContainer container = new ElasticsearchContainer(
+                DockerImageName.parse("docker.elastic.co/elasticsearch/elasticsearch").withTag("7.17.2"))) {
+            container.start();
+            try (RestHighLevelClient client = new RestHighLevelClient(RestClient.builder(HttpHost.create(container.getHttpHostAddress())))) {
+                new IndexTemplate(
+                        client.getLowLevelClient(),
+                        "benchmark",
+                        List.of("template@*"),
+                        IndexTemplate.settings().replicas(0).refreshInterval(Duration.ofSeconds(5)),
+                        Duration.ofSeconds(1)
+                ).install();
+                // Warm up the JVM and the cluster with a run that is not measured
+                run(client, "warmup");
+                System.out.printf("Dynamic mapping: %.0f points/s%n", run(client, "dynamic"));
+                System.out.printf("Index template:  %.0f points/s%n", run(client, "template"));
+            }
+        }
+    }
+
+    /**
+     * @return points indexed per second
+     */
+    private static double run(RestHighLevelClient client, String prefix) throws IOException {
+        DocumentEncoder encoder = DocumentEncoder.forContentType(XContentType.JSON);
+        BulkRequest bulk = new BulkRequest();
+        long started = System.nanoTime();
+        for (int s = 0; s < series; s++) {
+            String index = prefix + "@series" + s + "@minute" + start.getYear();
+            for (int p = 0; p < pointsPerSeries; p++) {
+                ZonedDateTime timestamp = start.plusMinutes(p);
+                TimeSeriesPoint.Builder point = TimeSeriesPoint.builder()
+                        .timestamp(timestamp)
+                        .category("tjeneste" + s, "tjeneste" + (p % 10));
+                for (int m = 0; m < measurementsPerPoint; m++)
+                    point.measurement("maaling" + s + "_" + m, p * m);
+                bulk.add(new IndexRequest(index).id(Integer.toString(p)).source(encoder.encode(point.build(), timestamp), encoder.contentType()));
+                if (bulk.numberOfActions() == bulkSize) {
+                    execute(client, bulk);
+                    bulk = new BulkRequest();
+                }
+            }
+        }
+        if (bulk.numberOfActions() > 0)
+            execute(client, bulk);
+        return (double) series * pointsPerSeries * 1_000_000_000 / (System.nanoTime() - started);
+    }
+
+    private static void execute(RestHighLevelClient client, BulkRequest bulk) throws IOException {
+        BulkResponse response = client.bulk(bulk, RequestOptions.DEFAULT);
+        if (response.hasFailures())
+            throw new IllegalStateException(response.buildFailureMessage());
+    }
+
+}
@@ -0,0 +1,79 @@
+package no.difi.statistics.ingest.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import no.difi.statistics.elasticsearch.DocumentEncoder;
+import no.difi.statistics.elasticsearch.JsonDocumentEncoder;
+import no.difi.statistics.elasticsearch.SmileDocumentEncoder;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DocumentEncoderTest {
+
+    private final DocumentEncoder encoder = new JsonDocumentEncoder();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ZonedDateTime timestamp = ZonedDateTime.of(2021, 3, 3, 12, 34, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void whenEncodingPointThenTimestampCategoriesAndMeasurementsAreWritten() throws Exception {
+        TimeSeriesPoint point = TimeSeriesPoint.builder()
+                .timestamp(timestamp)
+                .category("tjeneste", "idporten")
+                .measurement("antall", 1234L)
+                .measurement("negativ", -56L)
+                .measurement("min", Long.MIN_VALUE)
+                .build();
+        JsonNode document = objectMapper.readTree(encoder.encode(point, timestamp));
+        assertEquals(timestamp.toString(), document.get("timestamp").asText());
+        assertEquals("idporten", document.get("category.tjeneste").asText());
+        assertEquals(1234L, document.get("antall").asLong());
+        assertEquals(-56L, document.get("negativ").asLong());
+        assertEquals(Long.MIN_VALUE, document.get("min").asLong());
+        assertEquals(4, document.size());
+    }
+
+    @Test
+    public void whenEncodingValuesNeedingEscapesThenDocumentIsValidJson() throws Exception {
+        String value = "\"sitat\"\\ny linje\n\ttab\u0001 æøå 😀";
+        TimeSeriesPoint point = TimeSeriesPoint.builder()
+                .timestamp(timestamp)
+                .category("kategori \"æ\"", value)
+                .measurement("måling", 1L)
+                .build();
+        JsonNode document = objectMapper.readTree(encoder.encode(point, timestamp));
+        assertEquals(value, document.get("category.kategori \"æ\"").asText());
+        assertEquals(1L, document.get("måling").asLong());
+    }
+
+    @Test
+    public void whenEncodingPointAsSmileThenDocumentIsSameAsJson() throws Exception {
+        TimeSeriesPoint point = TimeSeriesPoint.builder()
+                .timestamp(timestamp)
+                .category("tjeneste", "idporten")
+                .measurement("antall", 1234L)
+                .measurement("feil", 12L)
+                .build();
+        JsonNode smileDocument = new ObjectMapper(new SmileFactory()).readTree(new SmileDocumentEncoder().encode(point, timestamp));
+        assertEquals(objectMapper.readTree(encoder.encode(point, timestamp)), smileDocument);
+    }
+
+    @Test
+    public void whenEncodingMeasurementPrefixedWithCategoryThenFail() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp).measurement("category.x", 1L).build();
+        assertThrows(IllegalArgumentException.class, () -> encoder.encode(point, timestamp));
+    }
+
+    @Test
+    public void whenEncodingMeasurementNamedTimestampThenFail() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder().timestamp(timestamp).measurement("timestamp", 1L).build();
+        assertThrows(IllegalArgumentException.class, () -> encoder.encode(point, timestamp));
+    }
+
+}
@@ -13,12 +13,23 @@ import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 import no.difi.statistics.InndataAPI;
 import no.difi.statistics.api.IngestResponse;
+import no.difi.statistics.elasticsearch.BulkWriter;
 import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.elasticsearch.DocumentEncoder;
 import no.difi.statistics.elasticsearch.IdResolver;
+import no.difi.statistics.elasticsearch.IndexNameCache;
+import no.difi.statistics.elasticsearch.LastPointCache;
+import no.difi.statistics.elasticsearch.Rollups;
 import no.difi.statistics.elasticsearch.config.ElasticsearchConfig;
+import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.test.utils.ElasticsearchHelper;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.xcontent.XContentType;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.jupiter.api.*;
@@ -40,12 +51,15 @@ import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.utility.DockerImageName;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
@@ -53,6 +67,7 @@ import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
 import static java.time.format.DateTimeFormatter.ofPattern;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.api.IngestResponse.Status.Ok;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.model.TimeSeriesDefinition.builder;
@@ -108,8 +123,17 @@ public class ElasticsearchIngestServiceTest {
     private TestRestTemplate restTemplate;
     @Autowired
     private Client client;
+    @Autowired
+    private LastPointCache lastPointCache;
+    @Autowired
+    private RestHighLevelClient highLevelClient;
+    @Autowired
+    private BulkWriter bulkWriter;
+    @Autowired
+    private IndexNameCache indexNameCache;
     private ElasticsearchHelper elasticsearchHelper;
     private final String owner = "123456789"; // Not a valid orgno
+    private final String rollupStateIndex = "statistics-rollups-test";
 
     private static final String wellKnown = "{\"issuer\":\"http://localhost:8888/idporten-oidc-provider/\",\"authorization_endpoint\":\"http://localhost:8888/idporten-oidc-provider/authorize\",\"pushed_authorization_request_endpoint\":\"http://localhost:8888/idporten-oidc-provider/par\",\"token_endpoint\":\"http://localhost:8888/idporten-oidc-provider/token\",\"end_session_endpoint\":\"http://localhost:8888/idporten-oidc-provider/endsession\",\"revocation_endpoint\":\"http://localhost:8888/idporten-oidc-provider/revoke\",\"jwks_uri\":\"http://localhost:8888/idporten-oidc-provider/jwk\",\"response_types_supported\":[\"code\",\"id_token\",\"id_token token\",\"token\"],\"response_modes_supported\":[\"query\",\"form_post\",\"fragment\"],\"subject_types_supported\":[\"pairwise\"],\"id_token_signing_alg_values_supported\":[\"RS256\"],\"code_challenge_methods_supported\":[\"S256\"],\"userinfo_endpoint\":\"http://localhost:8888/idporten-oidc-provider/userinfo\",\"scopes_supported\":[\"openid\",\"profile\"],\"ui_locales_supported\":[\"nb\",\"nn\",\"en\",\"se\"],\"acr_values_supported\":[\"Level3\",\"Level4\"],\"frontchannel_logout_supported\":true,\"frontchannel_logout_session_supported\":true,\"introspection_endpoint\":\"http://localhost:8888/idporten-oidc-provider/tokeninfo\",\"token_endpoint_auth_methods_supported\":[\"client_secret_post\",\"client_secret_basic\",\"private_key_jwt\",\"none\"],\"request_parameter_supported\":true,\"request_uri_parameter_supported\":false,\"request_object_signing_alg_values_supported\":[\"RS256\",\"RS384\",\"RS512\"]}";
 
@@ -175,6 +199,7 @@ public class ElasticsearchIngestServiceTest {
     @AfterEach
     public void cleanup() {
         elasticsearchHelper.clear();
+        lastPointCache.clear();
     }
 
     @Test
@@ -298,6 +323,121 @@ public class ElasticsearchIngestServiceTest {
         Assertions.assertNull(last("series").getBody());
     }
 
+    @Test
+    public void whenIngestingPointsOfSeveralYearsThenIndexNamesSortNewestLast() throws JSONException {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ingest(seriesDefinition, point().timestamp(now).measurement("aMeasurement", 3L).build());
+        ingest(seriesDefinition, point().timestamp(now.minusYears(2)).measurement("aMeasurement", 1L).build());
+        ingest(seriesDefinition, point().timestamp(now.minusYears(1)).measurement("aMeasurement", 2L).build());
+        elasticsearchHelper.refresh();
+        List<String> indices = Arrays.stream(elasticsearchHelper.indices())
+                .filter(index -> index.startsWith(owner + "@series@"))
+                .sorted()
+                .collect(toList());
+        Assertions.assertEquals(List.of(
+                resolveIndexName().seriesDefinition(seriesDefinition).at(now.minusYears(2)).single(),
+                resolveIndexName().seriesDefinition(seriesDefinition).at(now.minusYears(1)).single(),
+                resolveIndexName().seriesDefinition(seriesDefinition).at(now).single()
+        ), indices);
+        JSONObject lastPoint = new JSONObject(last("series").getBody());
+        Assertions.assertEquals(now.format(ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")), lastPoint.get("timestamp"));
+    }
+
+    @Test
+    public void givenLastPointInAnOldIndexWhenRequestingLastPointThenItIsFound() throws JSONException {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        ingest(seriesDefinition, point().timestamp(now.minusYears(2)).measurement("aMeasurement", 1L).build());
+        elasticsearchHelper.refresh();
+        lastPointCache.clear();
+        JSONObject lastPoint = new JSONObject(last("series").getBody());
+        Assertions.assertEquals(now.minusYears(2).format(ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'")), lastPoint.get("timestamp"));
+    }
+
+    @Test
+    public void whenMinutePointsAreRolledUpThenHourDayMonthAndYearPointsHoldTheirSums() throws Exception {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        Rollups rollups = rollups();
+        rollups.stored(seriesDefinition, List.of(
+                point().timestamp(now).measurement("aMeasurement", 1L).build(),
+                point().timestamp(now.plusMinutes(59)).measurement("aMeasurement", 2L).build(),
+                point().timestamp(now.plusHours(1)).measurement("aMeasurement", 4L).build(),
+                point().timestamp(now.withDayOfMonth(31).withHour(23).withMinute(59)).measurement("aMeasurement", 8L).build(),
+                point().timestamp(now.withMonth(12).withDayOfMonth(31).withHour(23).withMinute(59)).measurement("aMeasurement", 16L).build()
+        ));
+        rollups.close();
+        assertRollup(MeasurementDistance.hours, now, 3);
+        assertRollup(MeasurementDistance.hours, now.plusHours(1), 4);
+        assertRollup(MeasurementDistance.days, now, 7);
+        assertRollup(MeasurementDistance.days, now.withDayOfMonth(31), 8);
+        assertRollup(MeasurementDistance.months, now.withDayOfMonth(1), 15);
+        assertRollup(MeasurementDistance.months, now.withMonth(12).withDayOfMonth(1), 16);
+        assertRollup(MeasurementDistance.years, now.withDayOfYear(1), 31);
+    }
+
+    @Test
+    public void whenRolledUpPointIsUpdatedAfterRestartThenItsPartIsReplacedAndRollupPointsAreWrittenWithTheVersionOfTheirState() throws Exception {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series").minutes().owner(owner);
+        Rollups rollups = rollups();
+        rollups.stored(seriesDefinition, List.of(
+                point().timestamp(now).measurement("aMeasurement", 1L).build(),
+                point().timestamp(now.plusMinutes(1)).measurement("aMeasurement", 2L).build()
+        ));
+        rollups.close();
+        assertRollup(MeasurementDistance.hours, now, 3);
+        // A new instance has only the state in Elasticsearch to go by
+        rollups = rollups();
+        rollups.stored(seriesDefinition, List.of(point().timestamp(now).measurement("aMeasurement", 5L).build()));
+        rollups.close();
+        GetResponse hour = assertRollup(MeasurementDistance.hours, now, 7);
+        assertRollup(MeasurementDistance.days, now, 7);
+        assertRollup(MeasurementDistance.years, now.withDayOfYear(1), 7);
+        GetResponse state = highLevelClient.get(new GetRequest(rollupStateIndex, hour.getIndex() + "/" + hour.getId()), RequestOptions.DEFAULT);
+        Assertions.assertEquals(2, state.getVersion());
+        Assertions.assertEquals(state.getVersion(), hour.getVersion());
+    }
+
+    @Test
+    public void whenMinutePointsAreRolledUpThenPointsUploadedToTheHourSeriesAreKept() throws Exception {
+        TimeSeriesDefinition hourSeries = seriesDefinition().name("series").hours().owner(owner);
+        Assertions.assertEquals(Ok, Objects.requireNonNull(ingest(hourSeries, point().timestamp(now).measurement("aMeasurement", 100L).build()).getBody()).getStatuses().get(0));
+        Rollups rollups = rollups();
+        rollups.stored(seriesDefinition().name("series").minutes().owner(owner), List.of(point().timestamp(now).measurement("aMeasurement", 1L).build()));
+        rollups.close();
+        assertRollup(MeasurementDistance.hours, now, 1);
+        assertIngestedHour(hourSeries, point().timestamp(now).measurement("aMeasurement", 100L).build());
+    }
+
+    private Rollups rollups() {
+        return new Rollups(highLevelClient, bulkWriter, indexNameCache, DocumentEncoder.forContentType(XContentType.JSON), lastPointCache, null,
+                rollupStateIndex, "-rollup", Duration.ofHours(1), 100_000);
+    }
+
+    /**
+     * Waits for the rollup point of the series to hold the expected sum, as rollup points are written asynchronously.
+     *
+     * @param normalizedTimestamp the start of the hour, day, month or year of the rollup point
+     */
+    private GetResponse assertRollup(MeasurementDistance distance, ZonedDateTime normalizedTimestamp, long expected) throws Exception {
+        TimeSeriesDefinition seriesDefinition = seriesDefinition().name("series-rollup").distance(distance).owner(owner);
+        GetRequest request = new GetRequest(
+                resolveIndexName().seriesDefinition(seriesDefinition).at(normalizedTimestamp).single(),
+                IdResolver.id(point().timestamp(normalizedTimestamp).categories(Map.of()).measurements(Map.of()).build(), seriesDefinition)
+        );
+        long deadline = System.currentTimeMillis() + 10_000;
+        GetResponse response = highLevelClient.get(request, RequestOptions.DEFAULT);
+        while (!hasSum(response, expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            response = highLevelClient.get(request, RequestOptions.DEFAULT);
+        }
+        Assertions.assertTrue(response.isExists(), "No rollup point at " + normalizedTimestamp + " in " + request.index());
+        Assertions.assertEquals(expected, ((Number) response.getSourceAsMap().get("aMeasurement")).longValue());
+        return response;
+    }
+
+    private static boolean hasSum(GetResponse response, long expected) {
+        return response.isExists() && response.getSourceAsMap().get("aMeasurement") instanceof Number sum && sum.longValue() == expected;
+    }
+
     private void assertIngested(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> points, IngestResponse response) {
         elasticsearchHelper.refresh();
         for (int i = 0; i < points.size(); i++)